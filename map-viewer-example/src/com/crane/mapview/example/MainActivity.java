@@ -1,5 +1,7 @@
 package com.crane.mapview.example;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -28,7 +30,7 @@ public class MainActivity extends Activity {
 
 		setContentView(R.layout.activity_main);
 
-		tilesProvider = new OnlineMapTilesProvider();
+		tilesProvider = new OnlineMapTilesProvider(new File(getCacheDir(), "tiles"));
 		tilesProvider.init();
 
 		final MapView mapView = (MapView) findViewById(R.id.map_view);
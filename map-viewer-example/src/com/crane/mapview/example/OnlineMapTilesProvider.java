@@ -1,7 +1,12 @@
 package com.crane.mapview.example;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -9,16 +14,25 @@ import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.util.Log;
 
-import com.crane.mapview.Tile;
-import com.crane.mapview.TilesProvider;
+import com.crane.mapview.DiskTilesCache;
+import com.crane.mapview.EncodedTilesProvider;
 
-public class OnlineMapTilesProvider extends TilesProvider {
+public class OnlineMapTilesProvider extends EncodedTilesProvider {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final long DISK_CACHE_SIZE = 32 * 1024 * 1024;
 
 	private Options options = new Options();
 
 	private Bitmap defaultBitmap;
 
-	public OnlineMapTilesProvider() {
+	private final File cacheDir;
+
+	private volatile DiskTilesCache diskCache;
+
+	public OnlineMapTilesProvider(File cacheDir) {
+		this.cacheDir = cacheDir;
 		options.inPreferredConfig = Bitmap.Config.RGB_565;
 		options.inDither = false;
 		options.inScaled = false;
@@ -26,7 +40,29 @@ public class OnlineMapTilesProvider extends TilesProvider {
 	}
 
 	@Override
-	protected Tile doFetchTile(int zoomLevel, int tileX, int tileY) {
+	protected void prepareDecodeOptions(Options options) {
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inDither = false;
+		options.inScaled = false;
+		options.inSampleSize = 1;
+	}
+
+	@Override
+	protected ByteBuffer doFetchTileData(int zoomLevel, int tileX, int tileY, CancellationSignal signal) {
+		DiskTilesCache diskCache = this.diskCache;
+		if (diskCache != null) {
+			ByteBuffer data = diskCache.get(zoomLevel, tileX, tileY);
+			if (data != null)
+				return data;
+		}
+
+		ByteBuffer data = downloadTileData(zoomLevel, tileX, tileY, signal);
+		if (data != null && diskCache != null)
+			diskCache.put(zoomLevel, tileX, tileY, data);
+		return data;
+	}
+
+	private ByteBuffer downloadTileData(int zoomLevel, int tileX, int tileY, CancellationSignal signal) {
 
 		// String url =
 		// String.format("http://otile1.mqcdn.com/tiles/1.0.0/osm/%d/%d/%d.jpg",
@@ -40,15 +76,17 @@ public class OnlineMapTilesProvider extends TilesProvider {
 			connection.setReadTimeout(5000);
 			connection.setConnectTimeout(10000);
 			try {
+				if (signal.isCanceled())
+					return null;
+
 				int rc = connection.getResponseCode();
 				if (rc != 200) {
 					Log.e(getClass().getSimpleName(), "Unable load tile: x=" + tileX + "; y=" + tileY + "; zoom=" + zoomLevel + ". Server return " + rc);
 					return null;
 				}
 
-				Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream(), null, options);
-				Tile tile = new Tile(bitmap);
-				return tile;
+				byte[] data = readData(connection.getInputStream(), signal);
+				return data != null ? ByteBuffer.wrap(data) : null;
 			} finally {
 				connection.disconnect();
 			}
@@ -58,12 +96,37 @@ public class OnlineMapTilesProvider extends TilesProvider {
 		return null;
 	}
 
+	private byte[] readData(InputStream in, CancellationSignal signal) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				if (signal.isCanceled())
+					return null;
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
 	@Override
 	protected void doInit() {
+		try {
+			diskCache = DiskTilesCache.open(cacheDir, DISK_CACHE_SIZE);
+		} catch (IOException e) {
+			Log.e(getClass().getSimpleName(), "Unable open disk cache " + cacheDir, e);
+		}
 	}
 
 	@Override
 	protected void doRelease() {
+		if (diskCache != null) {
+			diskCache.close();
+			diskCache = null;
+		}
 	}
 
 	@Override
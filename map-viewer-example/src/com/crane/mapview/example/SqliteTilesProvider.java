@@ -1,5 +1,7 @@
 package com.crane.mapview.example;
 
+import java.nio.ByteBuffer;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -8,10 +10,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.util.Log;
 
-import com.crane.mapview.Tile;
-import com.crane.mapview.TilesProvider;
+import com.crane.mapview.EncodedTilesProvider;
+import com.crane.mapview.TileBatch;
+
+public class SqliteTilesProvider extends EncodedTilesProvider {
+
+	private static final int BATCH_SIZE = 16;
 
-public class SqliteTilesProvider extends TilesProvider {
 	private Options options = new Options();
 
 	private Bitmap defaultBitmap;
@@ -26,16 +31,20 @@ public class SqliteTilesProvider extends TilesProvider {
 	}
 
 	@Override
-	protected Tile doFetchTile(int zoomLevel, int tileX, int tileY) {
+	protected void prepareDecodeOptions(Options options) {
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inDither = false;
+		options.inScaled = false;
+		options.inSampleSize = 1;
+	}
+
+	@Override
+	protected ByteBuffer doFetchTileData(int zoomLevel, int tileX, int tileY, CancellationSignal signal) {
 		try {
 			Cursor cursor = database.rawQuery("select tile_data from tiles where tile_row = ? and tile_column = ? and zoom_level = ?", new String[] { "" + tileY, "" + tileX, "" + zoomLevel });
 			try {
 				if (cursor.moveToFirst()) {
-					byte[] data = cursor.getBlob(0);
-
-					Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-					Tile tile = new Tile(bitmap);
-					return tile;
+					return ByteBuffer.wrap(cursor.getBlob(0));
 				}
 			} finally {
 				cursor.close();
@@ -46,6 +55,64 @@ public class SqliteTilesProvider extends TilesProvider {
 		return null;
 	}
 
+	@Override
+	protected int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	@Override
+	protected void doFetchTiles(TileBatch batch) {
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (int i = 0; i < batch.size(); i++) {
+			left = Math.min(left, batch.getTileX(i));
+			top = Math.min(top, batch.getTileY(i));
+			right = Math.max(right, batch.getTileX(i));
+			bottom = Math.max(bottom, batch.getTileY(i));
+		}
+
+		// a sparse batch would read too many unneeded tiles with a single
+		// range query, so query every requested row separately
+		if ((right - left + 1) * (bottom - top + 1) <= 2 * batch.size()) {
+			fetchRange(batch, left, top, right, bottom);
+		} else {
+			for (int tileY = top; tileY <= bottom; tileY++) {
+				int rowLeft = Integer.MAX_VALUE;
+				int rowRight = Integer.MIN_VALUE;
+				for (int i = 0; i < batch.size(); i++) {
+					if (batch.getTileY(i) == tileY) {
+						rowLeft = Math.min(rowLeft, batch.getTileX(i));
+						rowRight = Math.max(rowRight, batch.getTileX(i));
+					}
+				}
+				if (rowLeft <= rowRight)
+					fetchRange(batch, rowLeft, tileY, rowRight, tileY);
+			}
+		}
+	}
+
+	private void fetchRange(TileBatch batch, int left, int top, int right, int bottom) {
+		int zoomLevel = batch.getZoomLevel();
+		try {
+			Cursor cursor = database.rawQuery("select tile_column, tile_row, tile_data from tiles where zoom_level = ? and tile_column between ? and ? and tile_row between ? and ?", new String[] { "" + zoomLevel, "" + left, "" + right, "" + top, "" + bottom });
+			try {
+				while (cursor.moveToNext()) {
+					int index = batch.indexOf(cursor.getInt(0), cursor.getInt(1));
+					if (index < 0 || batch.isCanceled(index))
+						continue;
+
+					batch.setData(index, ByteBuffer.wrap(cursor.getBlob(2)));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (Throwable e) {
+			Log.e(getClass().getSimpleName(), "Unable load tiles: x=" + left + ".." + right + "; y=" + top + ".." + bottom + "; zoom=" + zoomLevel, e);
+		}
+	}
+
 	@Override
 	protected void doInit() {
 		database = SQLiteDatabase.openDatabase("/sdcard/Europe_Russia_Moscow@2x.mbtiles", null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
@@ -0,0 +1,47 @@
+package com.crane.mapview;
+
+import java.lang.reflect.Array;
+
+// Array helpers from java.util.Arrays that Android has only since GINGERBREAD.
+final class ArrayUtils {
+
+	private ArrayUtils() {
+	}
+
+	static long[] copyOf(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T[] copyOf(T[] array, int length) {
+		T[] copy = (T[]) Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	// index of the key in the sorted first size entries, or -(insertion
+	// point) - 1 like Arrays.binarySearch()
+	static int binarySearch(long[] array, int size, long key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long value = array[mid];
+			if (value < key)
+				low = mid + 1;
+			else if (value > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,157 @@
+package com.crane.mapview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+// Pool of evicted tile bitmaps which decoders reuse through Options.inBitmap.
+// Returned bitmaps are fenced: a bitmap becomes available only after
+// FENCE_FRAMES frames have been drawn, so a bitmap still referenced by the last
+// frame or by its display list is never overwritten.
+final class BitmapPool {
+
+	private static final int FENCE_FRAMES = 2;
+
+	private static final class Bucket {
+		final int width;
+		final int height;
+		final Bitmap.Config config;
+		final List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+
+		Bucket(int width, int height, Bitmap.Config config) {
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+	}
+
+	private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+	private Bitmap[] fenced = new Bitmap[16];
+
+	private long[] fencedFrames = new long[16];
+
+	private int fencedCount;
+
+	private final int maxSize;
+
+	private int size;
+
+	private long frame;
+
+	private int hitCount;
+
+	private int missCount;
+
+	BitmapPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	synchronized void put(Bitmap bitmap) {
+		if (!bitmap.isMutable() || bitmap.isRecycled()) {
+			bitmap.recycle();
+			return;
+		}
+		if (fencedCount == fenced.length) {
+			Bitmap[] newFenced = new Bitmap[fencedCount * 2];
+			System.arraycopy(fenced, 0, newFenced, 0, fencedCount);
+			fenced = newFenced;
+			long[] newFencedFrames = new long[fencedCount * 2];
+			System.arraycopy(fencedFrames, 0, newFencedFrames, 0, fencedCount);
+			fencedFrames = newFencedFrames;
+		}
+		fenced[fencedCount] = bitmap;
+		fencedFrames[fencedCount] = frame;
+		fencedCount++;
+	}
+
+	synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		Bucket bucket = findBucket(width, height, config);
+		if (bucket == null || bucket.bitmaps.isEmpty()) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		Bitmap bitmap = bucket.bitmaps.remove(bucket.bitmaps.size() - 1);
+		size -= sizeOf(bitmap);
+		return bitmap;
+	}
+
+	// called once a frame has been drawn, releases the bitmaps whose fence
+	// has passed
+	synchronized void onFrameDrawn() {
+		frame++;
+		int released = 0;
+		while (released < fencedCount && fencedFrames[released] + FENCE_FRAMES <= frame) {
+			release(fenced[released]);
+			released++;
+		}
+		if (released > 0) {
+			fencedCount -= released;
+			System.arraycopy(fenced, released, fenced, 0, fencedCount);
+			System.arraycopy(fencedFrames, released, fencedFrames, 0, fencedCount);
+			for (int i = fencedCount; i < fencedCount + released; i++)
+				fenced[i] = null;
+		}
+	}
+
+	private void release(Bitmap bitmap) {
+		if (bitmap.isRecycled())
+			return;
+		int bitmapSize = sizeOf(bitmap);
+		if (size + bitmapSize > maxSize) {
+			bitmap.recycle();
+			return;
+		}
+		Bucket bucket = findBucket(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		if (bucket == null) {
+			bucket = new Bucket(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			buckets.add(bucket);
+		}
+		bucket.bitmaps.add(bitmap);
+		size += bitmapSize;
+	}
+
+	private Bucket findBucket(int width, int height, Bitmap.Config config) {
+		for (int i = 0; i < buckets.size(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket.width == width && bucket.height == height && bucket.config == config)
+				return bucket;
+		}
+		return null;
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < buckets.size(); i++) {
+			List<Bitmap> bitmaps = buckets.get(i).bitmaps;
+			for (int j = 0; j < bitmaps.size(); j++)
+				bitmaps.get(j).recycle();
+		}
+		buckets.clear();
+		size = 0;
+		// fenced bitmaps may still be on screen, they are pooled once their
+		// fence has passed
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized int hitCount() {
+		return hitCount;
+	}
+
+	synchronized int missCount() {
+		return missCount;
+	}
+}
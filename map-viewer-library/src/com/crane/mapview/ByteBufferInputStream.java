@@ -0,0 +1,62 @@
+package com.crane.mapview;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// reusable stream over a buffer, lets direct and mapped buffers be decoded
+// without copying the whole tile into a heap array first
+final class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buffer;
+
+	void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining())
+			return -1;
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int remaining = buffer.remaining();
+		if (remaining == 0)
+			return len == 0 ? 0 : -1;
+		if (len > remaining)
+			len = remaining;
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int count = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+		buffer.mark();
+	}
+
+	@Override
+	public void reset() {
+		buffer.reset();
+	}
+}
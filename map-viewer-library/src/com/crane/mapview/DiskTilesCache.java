@@ -0,0 +1,408 @@
+package com.crane.mapview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+// Disk store for encoded tile data. Tiles are appended to a single pack file,
+// the key to offset index is kept in memory in LRU order and saved to a
+// separate index file. Evicted tiles leave holes in the pack file which are
+// reclaimed by rewriting the live tiles once the holes grow too large. Reads
+// return slices of read-only mappings of the pack file, so tile data does not
+// pass through the Java heap, except for the few tiles appended since the
+// end of the file was last mapped, which are read into a buffer.
+public class DiskTilesCache {
+
+	private static final String PACK_FILE = "tiles.pack";
+
+	private static final String INDEX_FILE = "tiles.idx";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int INDEX_MAGIC = 0x54494458;
+
+	private static final int INDEX_VERSION = 1;
+
+	// key and data length
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	// the index is saved after this many appended tiles
+	private static final int SAVE_INTERVAL = 64;
+
+	// the pack file is mapped in windows of two chunks starting every chunk,
+	// so a record not longer than a chunk lies in the window of the chunk it
+	// starts in and an append remaps at most one window
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	// records appended after the window of their chunk was mapped are read
+	// instead, until they make up this much and the window is mapped again
+	private static final int TAIL_SIZE = 128 * 1024;
+
+	private static final class Record {
+		long offset;
+		final int length;
+
+		Record(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File directory;
+
+	private final long maxSize;
+
+	private final LinkedHashMap<Long, Record> entries = new LinkedHashMap<Long, Record>(64, 0.75f, true);
+
+	private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+	private RandomAccessFile packFile;
+
+	private FileChannel pack;
+
+	private MappedByteBuffer[] windows = new MappedByteBuffer[0];
+
+	private long packSize;
+
+	private long liveSize;
+
+	private int unsavedCount;
+
+	private int hitCount;
+
+	private int missCount;
+
+	private DiskTilesCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	public static DiskTilesCache open(File directory, long maxSize) throws IOException {
+		DiskTilesCache cache = new DiskTilesCache(directory, maxSize);
+		cache.load();
+		return cache;
+	}
+
+	private static long getKey(int zoomLevel, int tileX, int tileY) {
+		// independent from Tile.getKey since the keys are persisted
+		return ((long) zoomLevel << 58) | ((long) tileX << 29) | tileY;
+	}
+
+	private void load() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable create cache directory " + directory);
+
+		openPack();
+		long indexedSize = readIndex();
+		scanRecords(indexedSize);
+		trimToSize();
+	}
+
+	private void openPack() throws IOException {
+		packFile = new RandomAccessFile(new File(directory, PACK_FILE), "rw");
+		pack = packFile.getChannel();
+		packSize = pack.size();
+		windows = new MappedByteBuffer[0];
+	}
+
+	// returns the pack file size covered by the index, records after it were
+	// appended after the index had been saved last time
+	private long readIndex() {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, INDEX_FILE))));
+		} catch (FileNotFoundException e) {
+			return 0;
+		}
+		try {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+				return 0;
+			long indexedSize = in.readLong();
+			if (indexedSize > packSize)
+				return 0;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long key = in.readLong();
+				long offset = in.readLong();
+				int length = in.readInt();
+				if (offset < RECORD_HEADER_SIZE || length < 0 || offset + length > indexedSize) {
+					clearEntries();
+					return 0;
+				}
+				putEntry(key, offset, length);
+			}
+			return indexedSize;
+		} catch (IOException e) {
+			Log.e(getClass().getSimpleName(), "Unable read tiles index", e);
+			clearEntries();
+			return 0;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void scanRecords(long position) throws IOException {
+		while (position + RECORD_HEADER_SIZE <= packSize) {
+			header.clear();
+			readFully(header, position);
+			long key = header.getLong(0);
+			int length = header.getInt(8);
+			if (length < 0 || position + RECORD_HEADER_SIZE + length > packSize)
+				break;
+			putEntry(key, position + RECORD_HEADER_SIZE, length);
+			position += RECORD_HEADER_SIZE + length;
+		}
+		// drop a record which was cut off by a crash
+		if (position < packSize) {
+			pack.truncate(position);
+			packSize = position;
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File temp = new File(directory, INDEX_FILE + TEMP_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(packSize);
+			out.writeInt(entries.size());
+			// least recently used first, so loading restores the LRU order
+			for (Map.Entry<Long, Record> e : entries.entrySet()) {
+				out.writeLong(e.getKey());
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(new File(directory, INDEX_FILE)))
+			throw new IOException("Unable replace tiles index");
+		unsavedCount = 0;
+	}
+
+	public synchronized ByteBuffer get(int zoomLevel, int tileX, int tileY) {
+		if (pack == null)
+			return null;
+
+		Record record = entries.get(getKey(zoomLevel, tileX, tileY));
+		if (record == null) {
+			missCount++;
+			return null;
+		}
+
+		try {
+			ByteBuffer data;
+			if (record.length > CHUNK_SIZE) {
+				data = pack.map(FileChannel.MapMode.READ_ONLY, record.offset, record.length);
+			} else {
+				int chunk = (int) (record.offset / CHUNK_SIZE);
+				long start = (long) chunk * CHUNK_SIZE;
+				MappedByteBuffer window = getWindow(chunk, record.offset + record.length);
+				if (window != null) {
+					data = window.duplicate();
+					data.limit((int) (record.offset + record.length - start));
+					data.position((int) (record.offset - start));
+				} else {
+					data = ByteBuffer.allocate(record.length);
+					readFully(data, record.offset);
+					data.flip();
+				}
+			}
+			hitCount++;
+			return data.slice();
+		} catch (IOException e) {
+			Log.e(getClass().getSimpleName(), "Unable map tiles pack", e);
+			return null;
+		}
+	}
+
+	// the window of the chunk mapped at least up to end, or null when end is in
+	// the tail appended since the window was mapped and the tail is shorter
+	// than TAIL_SIZE. Only the windows at the end of the pack file are mapped
+	// again as it grows.
+	private MappedByteBuffer getWindow(int chunk, long end) throws IOException {
+		if (chunk >= windows.length)
+			windows = ArrayUtils.copyOf(windows, Math.max(chunk + 1, windows.length * 2));
+		long start = (long) chunk * CHUNK_SIZE;
+		MappedByteBuffer window = windows[chunk];
+		if (window != null && start + window.capacity() >= end)
+			return window;
+		long size = Math.min(packSize - start, 2L * CHUNK_SIZE);
+		if (window != null && size < 2L * CHUNK_SIZE && size - window.capacity() < TAIL_SIZE)
+			return null;
+		window = pack.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windows[chunk] = window;
+		return window;
+	}
+
+	public synchronized void put(int zoomLevel, int tileX, int tileY, ByteBuffer data) {
+		if (pack == null)
+			return;
+
+		int length = data.remaining();
+		if (length > maxSize)
+			return;
+
+		long key = getKey(zoomLevel, tileX, tileY);
+		long position = packSize;
+		try {
+			header.clear();
+			header.putLong(key).putInt(length).flip();
+			writeFully(header, position);
+			writeFully(data.duplicate(), position + RECORD_HEADER_SIZE);
+			packSize = position + RECORD_HEADER_SIZE + length;
+			putEntry(key, position + RECORD_HEADER_SIZE, length);
+			trimToSize();
+
+			if (packSize - liveSize > maxSize / 2)
+				compact();
+			else if (++unsavedCount >= SAVE_INTERVAL)
+				writeIndex();
+		} catch (IOException e) {
+			Log.e(getClass().getSimpleName(), "Unable write tile: x=" + tileX + "; y=" + tileY + "; zoom=" + zoomLevel, e);
+		}
+	}
+
+	// rewrites live records into a new pack file, already handed out slices
+	// keep referring to the old mappings which stay valid after the rename
+	private void compact() throws IOException {
+		File temp = new File(directory, PACK_FILE + TEMP_SUFFIX);
+		long[] offsets = new long[entries.size()];
+		long position = 0;
+
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			int i = 0;
+			for (Map.Entry<Long, Record> e : entries.entrySet()) {
+				Record record = e.getValue();
+				header.clear();
+				header.putLong(e.getKey()).putInt(record.length).flip();
+				while (header.hasRemaining())
+					channel.write(header);
+				long transferred = 0;
+				while (transferred < record.length) {
+					long n = pack.transferTo(record.offset + transferred, record.length - transferred, channel);
+					if (n <= 0)
+						throw new IOException("Unable copy tile record");
+					transferred += n;
+				}
+				offsets[i++] = position + RECORD_HEADER_SIZE;
+				position += RECORD_HEADER_SIZE + record.length;
+			}
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+
+		packFile.close();
+		boolean renamed = temp.renameTo(new File(directory, PACK_FILE));
+		openPack();
+		if (!renamed) {
+			temp.delete();
+			throw new IOException("Unable replace tiles pack");
+		}
+
+		int i = 0;
+		for (Record record : entries.values())
+			record.offset = offsets[i++];
+		writeIndex();
+	}
+
+	private void putEntry(long key, long offset, int length) {
+		Record old = entries.put(key, new Record(offset, length));
+		if (old != null)
+			liveSize -= old.length;
+		liveSize += length;
+	}
+
+	private void trimToSize() {
+		Iterator<Record> it = entries.values().iterator();
+		while (liveSize > maxSize && it.hasNext()) {
+			liveSize -= it.next().length;
+			it.remove();
+		}
+	}
+
+	private void clearEntries() {
+		entries.clear();
+		liveSize = 0;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = pack.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of tiles pack");
+			position += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += pack.write(buffer, position);
+	}
+
+	private static void closeQuietly(DataInputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public synchronized void close() {
+		if (pack == null)
+			return;
+		try {
+			writeIndex();
+		} catch (IOException e) {
+			Log.e(getClass().getSimpleName(), "Unable write tiles index", e);
+		}
+		try {
+			packFile.close();
+		} catch (IOException e) {
+		}
+		pack = null;
+		packFile = null;
+		windows = new MappedByteBuffer[0];
+	}
+
+	public synchronized long size() {
+		return liveSize;
+	}
+
+	public long maxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getTilesCount() {
+		return entries.size();
+	}
+
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+
+	public synchronized int missCount() {
+		return missCount;
+	}
+}
@@ -0,0 +1,174 @@
+package com.crane.mapview;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Second cache tier: encoded tile data in a ring buffer outside the Java heap.
+// New tiles overwrite the oldest ones, so the index only has to tell whether
+// a record has been overwritten yet. Records are read without copying, which
+// means a record may get overwritten while it is decoded; isValid() tells
+// afterwards whether the decoded data can be trusted.
+final class EncodedTilesCache {
+
+	private static final long EMPTY = -1L;
+
+	private final ByteBuffer ring;
+
+	private final int capacity;
+
+	private final long[] keys;
+
+	// position of the record counted in bytes written since creation
+	private final long[] positions;
+
+	private final int[] lengths;
+
+	private final int mask;
+
+	private int size;
+
+	private long writePosition;
+
+	private int hitCount;
+
+	private int missCount;
+
+	EncodedTilesCache(int capacity, int maxTiles) {
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.capacity = capacity;
+		int length = Integer.highestOneBit(Math.max(2, maxTiles - 1)) << 2;
+		this.keys = new long[length];
+		this.positions = new long[length];
+		this.lengths = new int[length];
+		this.mask = length - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	// points the request to the cached data of its tile
+	synchronized boolean get(TileRequest request) {
+		int index = find(request.key);
+		if (index >= 0 && !isValid(positions[index])) {
+			removeAt(index);
+			index = -1;
+		}
+		if (index < 0) {
+			missCount++;
+			return false;
+		}
+
+		int offset = (int) (positions[index] % capacity);
+		ByteBuffer data = ring.duplicate();
+		data.limit(offset + lengths[index]);
+		data.position(offset);
+		request.data = data.slice();
+		request.encodedPosition = positions[index];
+		hitCount++;
+		return true;
+	}
+
+	// whether the record at the given position has not been overwritten
+	synchronized boolean isValid(long position) {
+		return position >= writePosition - capacity;
+	}
+
+	synchronized void put(long key, ByteBuffer data) {
+		int length = data.remaining();
+		if (length > capacity / 4)
+			return;
+
+		int index = find(key);
+		if (index < 0) {
+			if (size >= keys.length / 2)
+				purge();
+			if (size >= keys.length / 2)
+				return;
+			index = insert(key);
+		}
+
+		// records never wrap, the rest of the ring is skipped instead
+		long position = writePosition;
+		int offset = (int) (position % capacity);
+		if (offset + length > capacity) {
+			position += capacity - offset;
+			offset = 0;
+		}
+		writePosition = position + length;
+
+		ByteBuffer target = ring.duplicate();
+		target.position(offset);
+		target.put(data.duplicate());
+
+		positions[index] = position;
+		lengths[index] = length;
+	}
+
+	synchronized void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	synchronized int hitCount() {
+		return hitCount;
+	}
+
+	synchronized int missCount() {
+		return missCount;
+	}
+
+	private void purge() {
+		for (int i = 0; i <= mask; i++) {
+			while (keys[i] != EMPTY && !isValid(positions[i]))
+				removeAt(i);
+		}
+	}
+
+	private int find(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key)
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insert(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY)
+			index = (index + 1) & mask;
+		keys[index] = key;
+		size++;
+		return index;
+	}
+
+	// backward shift deletion keeps probe sequences intact without tombstones
+	private void removeAt(int index) {
+		int hole = index;
+		int next = (hole + 1) & mask;
+		while (keys[next] != EMPTY) {
+			int home = indexOf(keys[next]);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				positions[hole] = positions[next];
+				lengths[hole] = lengths[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		size--;
+	}
+
+	private int indexOf(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,34 @@
+package com.crane.mapview;
+
+import java.nio.ByteBuffer;
+
+// Provider that fetches encoded tile data and leaves decoding to the decode
+// stage, so fetch workers never wait for BitmapFactory. The data is decoded
+// with the options set up in prepareDecodeOptions().
+public abstract class EncodedTilesProvider extends TilesProvider {
+
+	private static final int ENCODED_CACHE_SIZE = 4 * 1024 * 1024;
+
+	protected abstract ByteBuffer doFetchTileData(int zoomLevel, int tileX, int tileY, CancellationSignal signal);
+
+	@Override
+	protected Tile doFetchTile(int zoomLevel, int tileX, int tileY) {
+		ByteBuffer data = doFetchTileData(zoomLevel, tileX, tileY, CancellationSignal.NONE);
+		return data != null ? doDecodeTile(data, zoomLevel, tileX, tileY) : null;
+	}
+
+	@Override
+	protected void doFetchTiles(TileBatch batch) {
+		int zoomLevel = batch.getZoomLevel();
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.isCanceled(i))
+				continue;
+			batch.setData(i, doFetchTileData(zoomLevel, batch.getTileX(i), batch.getTileY(i), batch.getRequest(i)));
+		}
+	}
+
+	@Override
+	protected int getEncodedCacheSize() {
+		return ENCODED_CACHE_SIZE;
+	}
+}
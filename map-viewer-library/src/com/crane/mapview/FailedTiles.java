@@ -0,0 +1,151 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+
+// Remembers tiles that failed to load and when they may be requested again.
+// Not thread safe, used from the thread requesting tiles only.
+final class FailedTiles {
+
+	private static final long EMPTY = -1L;
+
+	// first retry delay, doubled with every further failure
+	private static final long BASE_DELAY = 1000;
+
+	private static final long MAX_DELAY = 60000;
+
+	// a tile that has not failed for this long is forgotten
+	private static final long TTL = 10 * 60000;
+
+	private final long[] keys;
+
+	private final long[] retryTimes;
+
+	private final long[] expireTimes;
+
+	private final int[] failures;
+
+	private final int mask;
+
+	private int size;
+
+	private long seed = System.nanoTime() | 1;
+
+	FailedTiles(int capacity) {
+		int length = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.keys = new long[length];
+		this.retryTimes = new long[length];
+		this.expireTimes = new long[length];
+		this.failures = new int[length];
+		this.mask = length - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	int size() {
+		return size;
+	}
+
+	// returns the time the tile may be requested again or 0 if it may be
+	// requested right away
+	long getRetryTime(long key, long now) {
+		int index = find(key);
+		if (index < 0)
+			return 0;
+		if (now >= expireTimes[index]) {
+			removeAt(index);
+			return 0;
+		}
+		return now < retryTimes[index] ? retryTimes[index] : 0;
+	}
+
+	long onFailure(long key, long now) {
+		int index = find(key);
+		if (index < 0 || now >= expireTimes[index]) {
+			if (index < 0) {
+				if (size >= keys.length * 3 / 4)
+					purge(now);
+				index = insert(key);
+			}
+			failures[index] = 0;
+		}
+
+		int n = ++failures[index];
+		long delay = n > 16 ? MAX_DELAY : Math.min(MAX_DELAY, BASE_DELAY << (n - 1));
+		// jitter between 50% and 150% so failed tiles do not retry in lockstep
+		delay = delay / 2 + (long) (delay * nextRandom());
+
+		retryTimes[index] = now + delay;
+		expireTimes[index] = now + TTL;
+		return retryTimes[index];
+	}
+
+	void remove(long key) {
+		int index = find(key);
+		if (index >= 0)
+			removeAt(index);
+	}
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	private void purge(long now) {
+		for (int i = 0; i <= mask; i++) {
+			while (keys[i] != EMPTY && now >= expireTimes[i])
+				removeAt(i);
+		}
+		// still crowded with recent failures: start over rather than degrade
+		if (size >= keys.length * 3 / 4)
+			clear();
+	}
+
+	private int find(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key)
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insert(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY)
+			index = (index + 1) & mask;
+		keys[index] = key;
+		size++;
+		return index;
+	}
+
+	// backward shift deletion keeps probe sequences intact without tombstones
+	private void removeAt(int index) {
+		int hole = index;
+		int next = (hole + 1) & mask;
+		while (keys[next] != EMPTY) {
+			int home = indexOf(keys[next]);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				retryTimes[hole] = retryTimes[next];
+				expireTimes[hole] = expireTimes[next];
+				failures[hole] = failures[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		size--;
+	}
+
+	private double nextRandom() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (seed >>> 11) * 0x1.0p-53;
+	}
+
+	private int indexOf(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
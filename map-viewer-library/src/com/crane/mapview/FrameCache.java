@@ -0,0 +1,124 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+// Composited tiles around the viewport. The backing bitmap is a torus of tile
+// slots: tile (x, y) always goes to slot (x mod columns, y mod rows), so a pan
+// only draws the tiles scrolled into the margin and the blit wraps around the
+// bitmap edges in at most four pieces.
+final class FrameCache {
+
+	private static final long NONE = -1;
+
+	private Bitmap bitmap;
+
+	private Canvas canvas;
+
+	private int tileSize;
+
+	private int columns;
+
+	private int rows;
+
+	// key of the tile drawn in every slot and whether it was drawn from the
+	// tile itself rather than from a fallback
+	private long[] slotKeys;
+
+	private boolean[] slotComplete;
+
+	private final Rect src = new Rect();
+
+	private final Rect dst = new Rect();
+
+	// returns false when the backing bitmap could not be allocated
+	boolean prepare(int width, int height, int tileSize) {
+		// visible tiles plus one tile of margin on every side
+		int columns = width / tileSize + 4;
+		int rows = height / tileSize + 4;
+		if (bitmap != null && this.tileSize == tileSize && this.columns == columns && this.rows == rows)
+			return true;
+
+		release();
+		try {
+			bitmap = Bitmap.createBitmap(columns * tileSize, rows * tileSize, Bitmap.Config.RGB_565);
+		} catch (OutOfMemoryError e) {
+			return false;
+		}
+		canvas = new Canvas(bitmap);
+		this.tileSize = tileSize;
+		this.columns = columns;
+		this.rows = rows;
+		slotKeys = new long[columns * rows];
+		slotComplete = new boolean[columns * rows];
+		invalidate();
+		return true;
+	}
+
+	void invalidate() {
+		if (slotKeys != null)
+			Arrays.fill(slotKeys, NONE);
+	}
+
+	void release() {
+		if (bitmap != null)
+			bitmap.recycle();
+		bitmap = null;
+		canvas = null;
+		slotKeys = null;
+		slotComplete = null;
+	}
+
+	int getSlot(int tileX, int tileY) {
+		return mod(tileY, rows) * columns + mod(tileX, columns);
+	}
+
+	// whether the slot already shows the tile as well as it can be shown
+	boolean isUpToDate(int slot, long key, boolean cached) {
+		return slotKeys[slot] == key && (slotComplete[slot] || !cached);
+	}
+
+	// returns a canvas positioned so the tile can be drawn at its map
+	// coordinates, has to be followed by endSlot()
+	Canvas beginSlot(int slot, int x1, int y1) {
+		int left = (slot % columns) * tileSize;
+		int top = (slot / columns) * tileSize;
+		canvas.save();
+		canvas.clipRect(left, top, left + tileSize, top + tileSize);
+		canvas.translate(left - x1, top - y1);
+		return canvas;
+	}
+
+	void endSlot(int slot, long key, boolean complete) {
+		canvas.restore();
+		slotKeys[slot] = key;
+		slotComplete[slot] = complete;
+	}
+
+	// draws the viewport given in map coordinates
+	void draw(Canvas target, int sx1, int sy1, int sx2, int sy2) {
+		int width = columns * tileSize;
+		int height = rows * tileSize;
+		for (int y = sy1; y < sy2;) {
+			int by = mod(y, height);
+			int h = Math.min(sy2 - y, height - by);
+			for (int x = sx1; x < sx2;) {
+				int bx = mod(x, width);
+				int w = Math.min(sx2 - x, width - bx);
+				src.set(bx, by, bx + w, by + h);
+				dst.set(x, y, x + w, y + h);
+				target.drawBitmap(bitmap, src, dst, null);
+				x += w;
+			}
+			y += h;
+		}
+	}
+
+	private static int mod(int a, int b) {
+		int m = a % b;
+		return m < 0 ? m + b : m;
+	}
+}
@@ -0,0 +1,49 @@
+package com.crane.mapview;
+
+import android.location.Location;
+
+import com.crane.mapview.MapView.RoutePoint;
+
+// Everything a frame is drawn from that the UI thread changes while handling
+// gestures. MapRenderThread swaps instances between the threads, the render
+// thread never sees one being written. Overlays and route are snapshots the
+// UI thread does not change once published.
+final class FrameState {
+
+	int scrollX;
+
+	int scrollY;
+
+	int width;
+
+	int height;
+
+	double zoomLevel;
+
+	int mapSize;
+
+	int tileSize;
+
+	Location location;
+
+	boolean pinching;
+
+	OverlaySnapshot overlays;
+
+	RoutePoint[] route;
+
+	void set(int scrollX, int scrollY, int width, int height, double zoomLevel, int mapSize, int tileSize, Location location, boolean pinching,
+			OverlaySnapshot overlays, RoutePoint[] route) {
+		this.scrollX = scrollX;
+		this.scrollY = scrollY;
+		this.width = width;
+		this.height = height;
+		this.zoomLevel = zoomLevel;
+		this.mapSize = mapSize;
+		this.tileSize = tileSize;
+		this.location = location;
+		this.pinching = pinching;
+		this.overlays = overlays;
+		this.route = route;
+	}
+}
@@ -0,0 +1,140 @@
+package com.crane.mapview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Open addressing set of tile keys with a state per key. Keys are added from a
+// single thread only, state changes and removals may come from any thread.
+final class InFlightTiles {
+
+	static final int NONE = 0;
+
+	static final int QUEUED = 1;
+
+	static final int RUNNING = 2;
+
+	private static final int STATE_SHIFT = 61;
+
+	private static final long KEY_MASK = (1L << STATE_SHIFT) - 1;
+
+	private static final long QUEUED_BITS = (long) QUEUED << STATE_SHIFT;
+
+	private static final long RUNNING_BITS = (long) RUNNING << STATE_SHIFT;
+
+	private static final long EMPTY = 0L;
+
+	private static final long REMOVED = -1L;
+
+	private final AtomicLongArray slots;
+
+	private final int mask;
+
+	private final AtomicInteger queuedCount = new AtomicInteger();
+
+	private final AtomicInteger runningCount = new AtomicInteger();
+
+	InFlightTiles(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.slots = new AtomicLongArray(size);
+		this.mask = size - 1;
+	}
+
+	boolean add(long key) {
+		int removed = -1;
+		int index = indexOf(key);
+		for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+			long value = slots.get(index);
+			if (value == EMPTY) {
+				if (removed < 0) {
+					slots.set(index, QUEUED_BITS | key);
+				} else {
+					slots.set(removed, QUEUED_BITS | key);
+					clearRemoved(index);
+				}
+				queuedCount.incrementAndGet();
+				return true;
+			}
+			if (value == REMOVED) {
+				if (removed < 0)
+					removed = index;
+			} else if ((value & KEY_MASK) == key) {
+				return false;
+			}
+		}
+		if (removed < 0)
+			return false;
+		slots.set(removed, QUEUED_BITS | key);
+		queuedCount.incrementAndGet();
+		return true;
+	}
+
+	int getState(long key) {
+		int index = find(key);
+		return index < 0 ? NONE : (int) (slots.get(index) >>> STATE_SHIFT);
+	}
+
+	boolean contains(long key) {
+		return find(key) >= 0;
+	}
+
+	boolean setRunning(long key) {
+		int index = find(key);
+		if (index >= 0 && slots.compareAndSet(index, QUEUED_BITS | key, RUNNING_BITS | key)) {
+			queuedCount.decrementAndGet();
+			runningCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	boolean remove(long key) {
+		for (;;) {
+			int index = find(key);
+			if (index < 0)
+				return false;
+			long value = slots.get(index);
+			if ((value & KEY_MASK) == key && value != REMOVED && slots.compareAndSet(index, value, REMOVED)) {
+				if ((value & ~KEY_MASK) == RUNNING_BITS)
+					runningCount.decrementAndGet();
+				else
+					queuedCount.decrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	int queuedCount() {
+		return queuedCount.get();
+	}
+
+	int runningCount() {
+		return runningCount.get();
+	}
+
+	private int find(long key) {
+		int index = indexOf(key);
+		for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+			long value = slots.get(index);
+			if (value == EMPTY)
+				return -1;
+			if (value != REMOVED && (value & KEY_MASK) == key)
+				return index;
+		}
+		return -1;
+	}
+
+	// removed slots right before an empty one are not part of any probe
+	// sequence anymore and can be reused as empty
+	private void clearRemoved(int empty) {
+		int index = (empty - 1) & mask;
+		while (slots.get(index) == REMOVED) {
+			slots.set(index, EMPTY);
+			index = (index - 1) & mask;
+		}
+	}
+
+	private int indexOf(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,97 @@
+package com.crane.mapview;
+
+// Points sorted in place into a static KD-tree: the middle of every range
+// splits it alternately by x and by y, ranges of nodeSize points or less are
+// leaves scanned in full. Subclasses keep their data in arrays parallel to x
+// and y and move it in swap().
+abstract class KdTree {
+
+	private final int nodeSize;
+
+	double[] x;
+
+	double[] y;
+
+	KdTree(int nodeSize) {
+		this.nodeSize = nodeSize;
+	}
+
+	final boolean isLeaf(int left, int right) {
+		return right - left <= nodeSize;
+	}
+
+	// sorts the first size points into the tree
+	final void sort(int size) {
+		sort(0, size - 1, 0);
+	}
+
+	// swaps the points i and j, subclasses swap their data and call super
+	void swap(int i, int j) {
+		double d = x[i];
+		x[i] = x[j];
+		x[j] = d;
+		d = y[i];
+		y[i] = y[j];
+		y[j] = d;
+	}
+
+	private double coord(int i, int axis) {
+		return axis == 0 ? x[i] : y[i];
+	}
+
+	private void sort(int left, int right, int axis) {
+		if (isLeaf(left, right))
+			return;
+		int m = (left + right) >> 1;
+		select(m, left, right, axis);
+		sort(left, m - 1, 1 - axis);
+		sort(m + 1, right, 1 - axis);
+	}
+
+	// Floyd-Rivest selection: moves the k-th smallest coordinate of the range
+	// to k, the smaller ones before it and the larger ones after it
+	private void select(int k, int left, int right, int axis) {
+		while (right > left) {
+			if (right - left > 600) {
+				int n = right - left + 1;
+				int m = k - left + 1;
+				double z = Math.log(n);
+				double s = 0.5 * Math.exp(2 * z / 3);
+				double sd = 0.5 * Math.sqrt(z * s * (n - s) / n) * (m - n / 2 < 0 ? -1 : 1);
+				int newLeft = Math.max(left, (int) Math.floor(k - m * s / n + sd));
+				int newRight = Math.min(right, (int) Math.floor(k + (n - m) * s / n + sd));
+				select(k, newLeft, newRight, axis);
+			}
+
+			double t = coord(k, axis);
+			int i = left;
+			int j = right;
+
+			swap(left, k);
+			if (coord(right, axis) > t)
+				swap(left, right);
+
+			while (i < j) {
+				swap(i, j);
+				i++;
+				j--;
+				while (coord(i, axis) < t)
+					i++;
+				while (coord(j, axis) > t)
+					j--;
+			}
+
+			if (coord(left, axis) == t) {
+				swap(left, j);
+			} else {
+				j++;
+				swap(j, right);
+			}
+
+			if (j <= k)
+				left = j + 1;
+			if (k <= j)
+				right = j - 1;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.crane.mapview;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.graphics.Canvas;
+import android.view.SurfaceHolder;
+
+// Draws frames into a surface off the UI thread. The UI thread publishes the
+// latest FrameState and wakes the thread up, neither side waits for the other
+// to hand over gesture state. Frames requested while one is being drawn are
+// coalesced into the next one.
+//
+// Three frame states are reused instead of allocating one per change: the UI
+// thread writes the back one, the render thread draws the front one and the
+// middle one is swapped atomically with either, flagged while it holds a
+// frame the render thread has not taken yet.
+final class MapRenderThread extends Thread implements SurfaceHolder.Callback {
+
+	interface Renderer {
+		// called on the render thread with the canvas of the surface
+		void drawFrame(Canvas canvas, FrameState frame);
+	}
+
+	private final Renderer renderer;
+
+	private static final int FRESH = 4;
+
+	private final FrameState[] frames = { new FrameState(), new FrameState(), new FrameState() };
+
+	private final AtomicInteger middle = new AtomicInteger(1);
+
+	// written by the UI thread only
+	private int back = 2;
+
+	// drawn by the render thread only, once the first frame was taken
+	private int front;
+
+	private boolean hasFrame;
+
+	private final AtomicBoolean frameRequested = new AtomicBoolean();
+
+	private volatile boolean running = true;
+
+	// guards the surface, surfaceDestroyed() must not return while a frame is
+	// drawn into it
+	private final Object surfaceLock = new Object();
+
+	private SurfaceHolder holder;
+
+	MapRenderThread(Renderer renderer) {
+		super("MapRenderThread");
+		this.renderer = renderer;
+	}
+
+	// the frame state the UI thread writes before publish()
+	FrameState getBackFrame() {
+		return frames[back];
+	}
+
+	void publish() {
+		back = middle.getAndSet(back | FRESH) & ~FRESH;
+		requestFrame();
+	}
+
+	void requestFrame() {
+		frameRequested.set(true);
+		LockSupport.unpark(this);
+	}
+
+	void quit() {
+		running = false;
+		LockSupport.unpark(this);
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (!frameRequested.getAndSet(false)) {
+				LockSupport.park();
+				continue;
+			}
+
+			if ((middle.get() & FRESH) != 0) {
+				front = middle.getAndSet(front) & ~FRESH;
+				hasFrame = true;
+			}
+			if (!hasFrame)
+				continue;
+			FrameState frame = frames[front];
+
+			synchronized (surfaceLock) {
+				if (holder == null)
+					continue;
+				Canvas canvas = holder.lockCanvas();
+				if (canvas == null)
+					continue;
+				try {
+					renderer.drawFrame(canvas, frame);
+				} finally {
+					holder.unlockCanvasAndPost(canvas);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		synchronized (surfaceLock) {
+			this.holder = holder;
+		}
+		requestFrame();
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		requestFrame();
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		synchronized (surfaceLock) {
+			this.holder = null;
+		}
+	}
+}
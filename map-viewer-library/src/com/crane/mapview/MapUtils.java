@@ -35,6 +35,24 @@ public final class MapUtils {
 		return (int) Math.round((longitude + 180d) / 360d * mapSize);
 	}
 
+	// coordinates of the map projected at zoom level 0, scaled to [0, 1]
+	public static double longitudeToMercatorX(double longitude) {
+		return (longitude + 180d) / 360d;
+	}
+
+	public static double latitudeToMercatorY(double latitude) {
+		double sinLatitude = Math.sin(latitude * (Math.PI / 180));
+		return 0.5d - Math.log((1d + sinLatitude) / (1d - sinLatitude)) / (4d * Math.PI);
+	}
+
+	public static double mercatorXToLongitude(double x) {
+		return 360d * x - 180d;
+	}
+
+	public static double mercatorYToLatitude(double y) {
+		return 90d - 360d * Math.atan(Math.exp(-(.5d - y) * (2d * Math.PI))) / Math.PI;
+	}
+
 	public static double pixelXToLongitude(int pixelX, double zoomLevel, int tileSize) {
 		int mapSize = getMapSize(zoomLevel, tileSize);
 		if (pixelX < 0 || pixelX > mapSize) {
@@ -2,8 +2,8 @@ package com.crane.mapview;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -22,10 +22,13 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Animation;
@@ -57,9 +60,9 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	public static class Overlay implements Comparable<Overlay> {
 
-		private double lat;
+		double lat;
 
-		private double lng;
+		double lng;
 
 		Bitmap bitmap;
 
@@ -81,6 +84,9 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 		private String text;
 
+		// cluster label, kept so drawing does not allocate
+		private String countText;
+
 		Overlay() {
 		}
 
@@ -107,7 +113,7 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 			this.text = overlay.text;
 		}
 
-		private Overlay copy() {
+		Overlay copy() {
 			return new Overlay(this);
 		}
 
@@ -129,6 +135,12 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	public static final double MAX_ZOOM_LEVEL = 18;
 
+	// levels of cached descendants composed into a missing tile
+	private static final int MAX_DESCENDANT_DEPTH = 2;
+
+	// how far ahead (ms) the pinch zoom speed is extrapolated
+	private static final long ZOOM_LOOKAHEAD = 300;
+
 	private OnBalloonUpdateListener onBalloonUpdateListener;
 
 	private LocationManager locationManager;
@@ -159,25 +171,105 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	private TilesProvider tilesProvider;
 
+	private TileKeyList wantedTiles = new TileKeyList(64);
+
+	private TileKeyList submittedTiles = new TileKeyList(64);
+
+	private TileKeyList pinnedTiles = new TileKeyList(64);
+
+	// false while tiles are drawn into the frame cache, which also draws
+	// tiles outside the viewport
+	private boolean collectTiles = true;
+
+	// read by the frame being drawn, which releases the cache once it is off
+	private volatile boolean frameCacheEnabled;
+
+	private final FrameCache frameCache = new FrameCache();
+
+	// tile size of the previous frame, the frame cache is only used while it
+	// does not change
+	private int frameTileSize;
+
+	// a pinch scales the snapshot beyond this either way before the tiles are
+	// resolved again at the current zoom level
+	private static final double MAX_SNAPSHOT_SCALE = 1.6d;
+
+	private volatile boolean zoomSnapshotEnabled = true;
+
+	private final ZoomSnapshot zoomSnapshot = new ZoomSnapshot();
+
+	// true during a pinch, its frames are drawn from the zoom snapshot
+	private boolean pinching;
+
+	// the snapshot bitmap could not be allocated, the pinch is drawn from
+	// tiles
+	private boolean zoomSnapshotFailed;
+
+	private boolean renderThreadEnabled;
+
+	// draws the map while the render thread mode is on and the view is
+	// attached, the UI thread then only hands it frame states
+	private MapRenderThread renderThread;
+
+	private SurfaceView surfaceView;
+
+	// frame state of onDraw(), reused since the UI thread draws one frame at a
+	// time
+	private final FrameState uiFrame = new FrameState();
+
+	// the frame being drawn, layers read the gesture state only from it
+	private FrameState frame;
+
 	private ScaleAnimation scaleAnimation;
 
 	private ZoomAnimation zoomAnimation;
 
+	private long lastZoomTime;
+
+	private double zoomSpeed;
+
+	private int anticipatedZoomLevel = -1;
+
 	private List<Overlay> overlays = new ArrayList<MapView.Overlay>();
 
-	private SparseArray<List<Overlay>> overlaysMap = new SparseArray<List<Overlay>>();
+	// indexes of the overlays and their clusters handed to the frames, the
+	// overlays are indexed again once they changed
+	private OverlaySnapshot overlaySnapshot = new OverlaySnapshot(new SparseArray<OverlayIndex>(), null);
+
+	private boolean overlaysChanged = true;
+
+	// counts the prepareOverlays() calls, clusters of an earlier one are
+	// dropped
+	private int clustersGeneration;
+
+	// overlays found by the frame being drawn and by a tap
+	private final OverlayIndex.Results drawnOverlays = new OverlayIndex.Results();
+
+	private final OverlayIndex.Results tappedOverlays = new OverlayIndex.Results();
 
 	private MapViewBalloon balloon;
 
 	private List<RoutePoint> routePoints;
 
+	// route handed to the frames, null until it is copied again
+	private RoutePoint[] route;
+
 	private Location location;
 
 	private Bitmap myLocationBitmap;
 
+	private ZoomDetector.OnZoomEndListener onZoomEndListener = new ZoomDetector.OnZoomEndListener() {
+		@Override
+		public void onZoomEnd() {
+			endPinch();
+		}
+	};
+
 	private OnZoomListener onZoomListener = new ZoomDetector.OnZoomListener() {
 		@Override
 		public void onZoom(double scale, double dx, double dy) {
+			if (!pinching)
+				beginPinch();
 			zoom(scale, dx, dy);
 		}
 
@@ -211,12 +303,18 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		@Override
 		public void onFling(int velX, int velY) {
 			scroller.fling(getScrollX(), getScrollY(), velX / 4, velY / 4, 0, maxScrollX, 0, maxScrollY);
+			prefetchFling(scroller.getStartX(), scroller.getStartY(), scroller.getFinalX(), scroller.getFinalY());
 			invalidate();
 		}
 
 		@Override
 		public void onDown() {
 			scroller.forceFinished(true);
+			lastZoomTime = 0;
+			zoomSpeed = 0;
+			anticipatedZoomLevel = -1;
+			if (tilesProvider != null)
+				tilesProvider.cancelPrefetch();
 		}
 	};
 
@@ -245,8 +343,17 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		@Override
 		public void onLocationChanged(Location location) {
 			MapView.this.getHandler().removeCallbacks(unableToDetectMyLocation);
+			// only the old and the new marker have to be redrawn
+			Rect dirty = locationDirtyRect;
+			if (!getMyLocationRect(MapView.this.location, zoomLevel, dirty))
+				dirty.setEmpty();
 			MapView.this.location = location;
-			MapView.this.invalidate();
+			if (getMyLocationRect(location, zoomLevel, locationUpdateRect))
+				dirty.union(locationUpdateRect);
+			if (renderThread != null)
+				publishFrame();
+			else if (!dirty.isEmpty())
+				MapView.this.invalidate(dirty);
 		}
 	};
 
@@ -260,6 +367,7 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 		this.zoomDetector = new ZoomDetector(context);
 		this.zoomDetector.setOnZoomListener(onZoomListener);
+		this.zoomDetector.setOnZoomEndListener(onZoomEndListener);
 
 		this.scroller = new Scroller(context, new LinearInterpolator());
 
@@ -319,18 +427,26 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	Rect rect2 = new Rect();
 
-	private boolean drawNearestPrevZoom(Canvas canvas, int tileX, int tileY, int zoomLevel, int step) {
+	// draws the part of the closest cached ancestor covering the tile
+	private boolean drawNearestPrevZoom(Canvas canvas, long key, int tileX, int tileY) {
+
+		// deeper ancestors would have to be scaled up from less than a pixel
+		int maxStep = 31 - Integer.numberOfLeadingZeros(tileSize);
 
-		int pow2 = 1 << step;
+		long prevKey = tilesCache.findAncestorKey(key, maxStep);
+		if (prevKey < 0)
+			return false;
 
-		int prevZoomLevel = zoomLevel - step;
-		int prevTileX = tileX / pow2;
-		int prevTileY = tileY / pow2;
-		Tile tile = tilesCache.get(prevTileX, prevTileY, prevZoomLevel);
+		Tile tile = tilesCache.getIfPresent(prevKey);
 		if (tile != null && tile.bitmap != null && !tile.bitmap.isRecycled()) {
+			if (collectTiles)
+				pinnedTiles.add(prevKey);
 
-			int x = tileX % pow2;
-			int y = tileY % pow2;
+			int step = Tile.getZoomLevelFromKey(key) - Tile.getZoomLevelFromKey(prevKey);
+			int pow2 = 1 << step;
+
+			int x = tileX & (pow2 - 1);
+			int y = tileY & (pow2 - 1);
 
 			int snippetSize = tileSize / pow2;
 
@@ -345,8 +461,34 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		return false;
 	}
 
+	// draws cached descendants over the tile rect, recursing into quadrants
+	// whose child is missing but has cached descendants itself
+	private void drawDescendants(Canvas canvas, long key, int x1, int y1, int x2, int y2, int depth) {
+		int cx = (x1 + x2) >> 1;
+		int cy = (y1 + y2) >> 1;
+		for (int quadrant = 0; quadrant < 4; quadrant++) {
+			long childKey = Tile.getChildKey(key, quadrant);
+			int left = (quadrant & 1) == 0 ? x1 : cx;
+			int right = (quadrant & 1) == 0 ? cx : x2;
+			int top = (quadrant & 2) == 0 ? y1 : cy;
+			int bottom = (quadrant & 2) == 0 ? cy : y2;
+
+			Tile tile = tilesCache.getIfPresent(childKey);
+			if (tile != null && tile.bitmap != null && !tile.bitmap.isRecycled()) {
+				if (collectTiles)
+					pinnedTiles.add(childKey);
+				rect.set(left, top, right, bottom);
+				canvas.drawBitmap(tile.bitmap, null, rect, paint);
+			} else if (depth < MAX_DESCENDANT_DEPTH && tilesCache.hasDescendants(childKey)) {
+				drawDescendants(canvas, childKey, left, top, right, bottom, depth + 1);
+			}
+		}
+	}
+
 	Rect rect = new Rect();
 
+	private Rect dirtyRect = new Rect();
+
 	Paint routePaint = new Paint();
 	{
 		routePaint.setARGB(90, 255, 0, 0);
@@ -360,44 +502,79 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	Path path = new Path();
 
-	private void drawMyLocation(Canvas canvas) {
+	private Rect routeBounds = new Rect();
+
+	private Rect locationRect = new Rect();
+
+	// the location listener has its own rects, locationRect belongs to the
+	// frame being drawn
+	private Rect locationDirtyRect = new Rect();
+
+	private Rect locationUpdateRect = new Rect();
+
+	// tile bounds used by the prefetching on the UI thread
+	private Rect prefetchBounds = new Rect();
+
+	private Rect prefetchCovered = new Rect();
+
+	// the marker bounds in map coordinates, false when there is no location
+	private boolean getMyLocationRect(Location location, double zoomLevel, Rect rect) {
 		if (location == null)
-			return;
+			return false;
 
 		int w = myLocationBitmap.getWidth();
 		int h = myLocationBitmap.getHeight();
 
 		int x = MapUtils.longitudeToPixelX(location.getLongitude(), zoomLevel, tileSize) - w / 2;
 		int y = MapUtils.latitudeToPixelY(location.getLatitude(), zoomLevel, tileSize) - h / 2;
-		canvas.drawBitmap(myLocationBitmap, x, y, null);
+		rect.set(x, y, x + w, y + h);
+		return true;
+	}
+
+	private void drawMyLocation(Canvas canvas) {
+		if (!getMyLocationRect(frame.location, frame.zoomLevel, locationRect) || !Rect.intersects(locationRect, clipRect))
+			return;
+
+		canvas.drawBitmap(myLocationBitmap, locationRect.left, locationRect.top, null);
 	}
 
 	private void drawRoute(Canvas canvas) {
-		if (routePoints == null || routePoints.size() == 0)
+		RoutePoint[] route = frame.route;
+		if (route == null || route.length == 0)
 			return;
 
 		RoutePoint last = null;
 		path.reset();
-		for (RoutePoint routePoint : routePoints) {
+		for (int i = 0; i < route.length; i++) {
+			RoutePoint routePoint = route[i];
 			if (last == null) {
 				last = routePoint;
-				int x = MapUtils.longitudeToPixelX(routePoint.lng, zoomLevel, tileSize);
-				int y = MapUtils.latitudeToPixelY(routePoint.lat, zoomLevel, tileSize);
+				int x = MapUtils.longitudeToPixelX(routePoint.lng, frame.zoomLevel, tileSize);
+				int y = MapUtils.latitudeToPixelY(routePoint.lat, frame.zoomLevel, tileSize);
 				path.moveTo(x, y);
+				routeBounds.set(x, y, x, y);
 				continue;
 			}
 
-			int x = MapUtils.longitudeToPixelX(routePoint.lng, zoomLevel, tileSize);
-			int y = MapUtils.latitudeToPixelY(routePoint.lat, zoomLevel, tileSize);
+			int x = MapUtils.longitudeToPixelX(routePoint.lng, frame.zoomLevel, tileSize);
+			int y = MapUtils.latitudeToPixelY(routePoint.lat, frame.zoomLevel, tileSize);
 			path.lineTo(x, y);
+			routeBounds.union(x, y);
 		}
-		canvas.drawPath(path, routePaint);
+
+		// the stroke reaches half its width beyond the points
+		int stroke = (int) Math.ceil(routePaint.getStrokeWidth() / 2);
+		routeBounds.inset(-stroke, -stroke);
+		if (Rect.intersects(routeBounds, clipRect))
+			canvas.drawPath(path, routePaint);
 	}
 
 	private void drawOverlay(Canvas canvas, Overlay overlay) {
 		if (overlay.count > 1 && overlay.circle != null) {
 
-			final String text = String.valueOf(overlay.items.size());
+			if (overlay.countText == null)
+				overlay.countText = String.valueOf(overlay.count);
+			final String text = overlay.countText;
 			overlay.circle.getPadding(rect2);
 
 			float tw = paint.measureText(text) + rect2.left + rect2.right;
@@ -452,13 +629,18 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 		boolean drawPrev = false;
 
-		Tile tile = tilesCache.get(tileX, tileY, zoomLevel);
+		long key = Tile.getKey(tileX, tileY, zoomLevel);
+		if (collectTiles)
+			pinnedTiles.add(key);
+
+		boolean missing = false;
+
+		Tile tile = tilesCache.get(key);
 		if (tile == null || tile.bitmap == null || tile.bitmap.isRecycled()) {
-			drawPrev = drawNearestPrevZoom(canvas, tileX, tileY, zoomLevel, 1);
-			if (!drawPrev)
-				drawPrev = drawNearestPrevZoom(canvas, tileX, tileY, zoomLevel, 2);
-			if (tilesProvider != null)
-				tilesProvider.fetchTileAsync(zoomLevel, tileX, tileY);
+			missing = true;
+			drawPrev = drawNearestPrevZoom(canvas, key, tileX, tileY);
+			if (collectTiles)
+				wantedTiles.add(key);
 		}
 
 		if (!drawPrev) {
@@ -467,143 +649,638 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 				canvas.drawBitmap(bitmap, null, rect, paint);
 		}
 
+		// smaller tiles cached while zooming out cover the fallback
+		if (missing && tilesCache.hasDescendants(key))
+			drawDescendants(canvas, key, x1, y1, x2, y2, 1);
+
 		// canvas.drawRect(rect, paint);
 		// canvas.drawText(tileX + " : " + tileY, rect.left + 10, rect.top + 40,
 		// paint);
 	}
 
-	private Overlay dummyOverlay = new Overlay();
+	// draws the tiles of the given level covering the area, tiles outside the
+	// clip are only collected. An area at the right or bottom edge of the map
+	// ends on the map size, which is where the tiles of the level end too.
+	private void drawTiles(Canvas canvas, int zoom, int tileSize, int sx1, int sy1, int sx2, int sy2, Rect clip) {
+		int maxTile = (1 << zoom) - 1;
 
-	@SuppressLint("NewApi")
-	@Override
-	public void onDraw(Canvas canvas) {
+		int tileX = MapUtils.pixelXToTileX(sx1, tileSize);
+		int x1 = tileX * tileSize;
+		int x2 = x1 + tileSize;
 
-		if (currentTileSize == 0)
+		int _tileY = MapUtils.pixelYToTileY(sy1, tileSize);
+		int _y1 = _tileY * tileSize;
+		int _y2 = _y1 + tileSize;
+
+		while (tileX <= maxTile && x1 <= sx2 && x2 >= sx1) {
+
+			int tileY = _tileY;
+			int y1 = _y1;
+			int y2 = _y2;
+
+			while (tileY <= maxTile && y1 <= sy2 && y2 >= sy1) {
+				if (clip.intersects(x1, y1, x2, y2))
+					drawTile(canvas, tileX, tileY, zoom, x1, y1, x2, y2, sx1, sy1, sx2, sy2);
+				else
+					collectTile(tileX, tileY, zoom);
+
+				tileY++;
+				y1 += tileSize;
+				y2 += tileSize;
+			}
+
+			tileX++;
+			x1 += tileSize;
+			x2 += tileSize;
+		}
+	}
+
+	// draws the viewport from the frame cache, only tiles scrolled into its
+	// margin or arrived since they were drawn are drawn into it
+	private boolean drawFrameCache(Canvas canvas, int zoom, int sx1, int sy1, int sx2, int sy2) {
+		if (!frameCacheEnabled) {
+			frameCache.release();
+			return false;
+		}
+
+		// zooming changes the tile size every frame, tiles are drawn directly
+		// until it settles
+		if (frame.tileSize != frameTileSize) {
+			frameTileSize = frame.tileSize;
+			frameCache.invalidate();
+			return false;
+		}
+
+		if (!frameCache.prepare(frame.width, frame.height, frame.tileSize))
+			return false;
+
+		int n = 1 << zoom;
+		int tileX1 = Math.max(0, MapUtils.pixelXToTileX(sx1, frame.tileSize) - 1);
+		int tileY1 = Math.max(0, MapUtils.pixelYToTileY(sy1, frame.tileSize) - 1);
+		int tileX2 = Math.min(n - 1, MapUtils.pixelXToTileX(sx2, frame.tileSize) + 1);
+		int tileY2 = Math.min(n - 1, MapUtils.pixelYToTileY(sy2, frame.tileSize) + 1);
+
+		for (int tileX = tileX1; tileX <= tileX2; tileX++) {
+			int x1 = tileX * frame.tileSize;
+			int x2 = x1 + frame.tileSize;
+
+			for (int tileY = tileY1; tileY <= tileY2; tileY++) {
+				int y1 = tileY * frame.tileSize;
+				int y2 = y1 + frame.tileSize;
+
+				long key = Tile.getKey(tileX, tileY, zoom);
+				boolean cached;
+				if (x1 <= sx2 && x2 >= sx1 && y1 <= sy2 && y2 >= sy1) {
+					// the wanted and pinned tiles are collected here since
+					// most frames do not draw any tile
+					pinnedTiles.add(key);
+					cached = tilesCache.getIfPresent(key) != null;
+					if (!cached)
+						wantedTiles.add(key);
+				} else {
+					cached = tilesCache.contains(key);
+				}
+
+				int slot = frameCache.getSlot(tileX, tileY);
+				if (frameCache.isUpToDate(slot, key, cached))
+					continue;
+
+				collectTiles = false;
+				try {
+					drawTile(frameCache.beginSlot(slot, x1, y1), tileX, tileY, zoom, x1, y1, x2, y2, sx1, sy1, sx2, sy2);
+				} finally {
+					frameCache.endSlot(slot, key, cached);
+					collectTiles = true;
+				}
+			}
+		}
+
+		int cx1 = Math.max(sx1, clipRect.left);
+		int cy1 = Math.max(sy1, clipRect.top);
+		int cx2 = Math.min(sx2, clipRect.right);
+		int cy2 = Math.min(sy2, clipRect.bottom);
+		if (cx1 < cx2 && cy1 < cy2)
+			frameCache.draw(canvas, cx1, cy1, cx2, cy2);
+		return true;
+	}
+
+	public boolean isFrameCacheEnabled() {
+		return frameCacheEnabled;
+	}
+
+	/**
+	 * Keeps the tiles around the viewport composited in an offscreen bitmap,
+	 * so panning draws a few bitmap pieces instead of every visible tile.
+	 * Costs a screen sized bitmap plus one tile of margin on every side.
+	 */
+	public void setFrameCacheEnabled(boolean frameCacheEnabled) {
+		this.frameCacheEnabled = frameCacheEnabled;
+		invalidate();
+	}
+
+	public boolean isZoomSnapshotEnabled() {
+		return zoomSnapshotEnabled;
+	}
+
+	/**
+	 * Draws pinch zooming by scaling the tiles rendered when the pinch
+	 * started, tiles are resolved at the current zoom level only once the
+	 * pinch ends or the scale goes past 1.6 either way. Costs a bitmap of 2.25
+	 * times the screen.
+	 */
+	public void setZoomSnapshotEnabled(boolean zoomSnapshotEnabled) {
+		this.zoomSnapshotEnabled = zoomSnapshotEnabled;
+		if (!zoomSnapshotEnabled)
+			pinching = false;
+		invalidate();
+	}
+
+	// the snapshot is taken by the next frame
+	private void beginPinch() {
+		if (zoomSnapshotEnabled)
+			pinching = true;
+	}
+
+	private void endPinch() {
+		if (!pinching)
 			return;
+		pinching = false;
+		invalidate();
+	}
 
-		long t1 = System.nanoTime();
+	// renders the tiles around the viewport of the frame at its zoom level
+	private boolean renderZoomSnapshot() {
+		int w = frame.width;
+		int h = frame.height;
+		int sx1 = frame.scrollX;
+		int sy1 = frame.scrollY;
+		int mapSize = frame.mapSize;
+		return renderZoomSnapshot(MapUtils.getZoomLevelAsInt(frame.zoomLevel), frame.tileSize, mapSize,
+				Math.max(0, sx1 - w / 4), Math.max(0, sy1 - h / 4), Math.min(mapSize, sx1 + w + w / 4), Math.min(mapSize, sy1 + h + h / 4));
+	}
 
-		int w = getWidth();
-		int h = getHeight();
+	private boolean renderZoomSnapshot(int zoom, int tileSize, int mapSize, int left, int top, int right, int bottom) {
+		if (!zoomSnapshot.prepare(frame.width, frame.height))
+			return false;
 
-		int sx1 = getScrollX();
-		int sy1 = getScrollY();
+		wantedTiles.clear();
+		pinnedTiles.clear();
 
-		int sx2 = sx1 + w;
-		int sy2 = sy1 + h;
+		Canvas canvas = zoomSnapshot.beginDraw(left, top, right, bottom, mapSize, zoom, tileSize);
+		try {
+			Rect area = zoomSnapshot.getArea();
+			drawTiles(canvas, zoom, tileSize, area.left, area.top, area.right, area.bottom, area);
+		} finally {
+			zoomSnapshot.endDraw();
+		}
 
-		int zoom = MapUtils.getZoomLevelAsInt(zoomLevel);
+		submitWantedTiles();
 
-		int tileX = MapUtils.pixelXToTileX(sx1, currentTileSize);
-		int x1 = tileX * currentTileSize;
-		int x2 = x1 + currentTileSize;
+		pinnedTiles.sort();
+		tilesCache.setPinnedTiles(pinnedTiles);
+		return true;
+	}
 
-		int _tileY = MapUtils.pixelYToTileY(sy1, currentTileSize);
-		int _y1 = _tileY * currentTileSize;
-		int _y2 = _y1 + currentTileSize;
+	private boolean drawZoomSnapshot(Canvas canvas, int sx1, int sy1, int sx2, int sy2) {
+		if (!frame.pinching) {
+			if (zoomSnapshotEnabled)
+				zoomSnapshot.invalidate();
+			else
+				zoomSnapshot.release();
+			zoomSnapshotFailed = false;
+			return false;
+		}
 
-		while (x1 <= sx2 && x2 >= sx1) {
+		if (zoomSnapshotFailed)
+			return false;
 
-			int tileY = _tileY;
-			int y1 = _y1;
-			int y2 = _y2;
+		if (!zoomSnapshot.covers(frame.mapSize, sx1, sy1, sx2, sy2, MAX_SNAPSHOT_SCALE)) {
+			if (!renderZoomSnapshot()) {
+				zoomSnapshotFailed = true;
+				return false;
+			}
+		}
 
-			while (y1 <= sy2 && y2 >= sy1) {
-				drawTile(canvas, tileX, tileY, zoom, x1, y1, x2, y2, sx1, sy1, sx2, sy2);
+		zoomSnapshot.draw(canvas, frame.mapSize);
+		return true;
+	}
 
-				tileY++;
-				y1 += currentTileSize;
-				y2 += currentTileSize;
+	private Runnable submitWantedTiles = new Runnable() {
+		@Override
+		public void run() {
+			// the wanted tiles belong to the frame being drawn, they are
+			// submitted once it is done rather than waiting for it
+			ReentrantLock lock = tilesCache.getLock();
+			if (!lock.tryLock()) {
+				ViewCompat.postOnAnimation(MapView.this, this);
+				return;
+			}
+			submitPosted = false;
+			try {
+				submitWantedTiles();
+			} finally {
+				lock.unlock();
 			}
+		}
+	};
 
-			tileX++;
-			x1 += currentTileSize;
-			x2 += currentTileSize;
+	private volatile boolean submitPosted;
+
+	private void submitWantedTiles() {
+		if (tilesProvider == null)
+			return;
+
+		// the tiles provider is used from the UI thread only
+		if (Thread.currentThread() instanceof MapRenderThread) {
+			wantedTiles.sort();
+			if (!submitPosted && !wantedTiles.equals(submittedTiles)) {
+				submitPosted = true;
+				post(submitWantedTiles);
+			}
+			return;
 		}
 
-		if (routePoints != null)
-			drawRoute(canvas);
+		wantedTiles.sort();
+		if (wantedTiles.equals(submittedTiles))
+			return;
+
+		tilesProvider.requestTiles(wantedTiles);
+
+		TileKeyList tiles = submittedTiles;
+		submittedTiles = wantedTiles;
+		wantedTiles = tiles;
+	}
 
-		List<Overlay> overlays = overlaysMap.get(zoom);
+	// overlays for the frames published from now on, on the UI thread
+	private OverlaySnapshot getOverlaySnapshot() {
+		if (overlaysChanged) {
+			overlaySnapshot = overlaySnapshot.withOverlays(new OverlayIndex(overlays));
+			overlaysChanged = false;
+		}
+		return overlaySnapshot;
+	}
 
-		if (overlays == null)
-			overlays = this.overlays;
+	private RoutePoint[] getRoute() {
+		if (route == null && routePoints != null)
+			route = routePoints.toArray(new RoutePoint[routePoints.size()]);
+		return route;
+	}
 
-		if (overlays != null) {
-			dummyOverlay.lat = MapUtils.pixelYToLatitude(sy1, zoomLevel, tileSize);
-			int ind1 = Collections.binarySearch(overlays, dummyOverlay);
-			ind1 = ind1 < 0 ? -ind1 - 1 : ind1;
+	private static final int OVERLAY_CLIP_MARGIN = 128;
 
-			dummyOverlay.lat = MapUtils.pixelYToLatitude(sy2, zoomLevel, tileSize);
-			int ind2 = Collections.binarySearch(overlays, dummyOverlay);
-			ind2 = ind2 < 0 ? -ind2 - 1 : ind2;
+	// overlays anchored in the map rect padded by OVERLAY_CLIP_MARGIN, the
+	// padded rect is kept on the map since a view at its edge reaches past it
+	private static int queryOverlays(OverlayIndex index, int left, int top, int right, int bottom, int mapSize, OverlayIndex.Results results) {
+		double size = mapSize;
+		return index.query(Math.max(0, left - OVERLAY_CLIP_MARGIN) / size, Math.max(0, top - OVERLAY_CLIP_MARGIN) / size,
+				Math.min(mapSize, right + OVERLAY_CLIP_MARGIN) / size, Math.min(mapSize, bottom + OVERLAY_CLIP_MARGIN) / size, results);
+	}
 
-			if (ind1 >= 0 && ind1 <= overlays.size() && ind2 >= 0 && ind2 <= overlays.size() && ind1 <= ind2)
-				for (int i = ind1; i < ind2; i++) {
-					Overlay overlay = overlays.get(i);
-					overlay.ensureZoomLevel(zoomLevel, tileSize);
-					if (overlay.x <= sx2 && overlay.x + overlay.bitmap.getWidth() >= sx1)
-						if (overlay.y <= sy2 && overlay.y + overlay.bitmap.getHeight() >= sy1)
-							drawOverlay(canvas, overlay);
-				}
+	// canvas clip of the frame being drawn in map coordinates
+	private Rect clipRect = new Rect();
+
+	// an overlay is drawn around its anchor, clusters also cover the rect of
+	// their last draw
+	private boolean isOverlayInClip(Overlay overlay) {
+		int w = overlay.bitmap.getWidth();
+		int h = overlay.bitmap.getHeight();
+		if (clipRect.intersects(overlay.x - w, overlay.y - h, overlay.x + w, overlay.y + h))
+			return true;
+		return overlay.count > 1 && Rect.intersects(overlay.rect, clipRect);
+	}
+
+	// pins and requests a visible tile that is not drawn in this frame
+	private void collectTile(int tileX, int tileY, int zoom) {
+		long key = Tile.getKey(tileX, tileY, zoom);
+		pinnedTiles.add(key);
+		if (!tilesCache.contains(key)) {
+			wantedTiles.add(key);
+			long prevKey = tilesCache.findAncestorKey(key, 31 - Integer.numberOfLeadingZeros(tileSize));
+			if (prevKey >= 0)
+				pinnedTiles.add(prevKey);
+		}
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		tilesCache.registerTrimCallbacks(getContext());
+		cacheVisible.run();
+		if (renderThreadEnabled)
+			startRenderThread();
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		if (visibility == VISIBLE)
+			cacheVisible.run();
+	}
+
+	// lets the tiles cache grow back from the trims of a hidden UI once no
+	// frame is being drawn
+	private Runnable cacheVisible = new Runnable() {
+		@Override
+		public void run() {
+			ReentrantLock lock = tilesCache.getLock();
+			if (!lock.tryLock()) {
+				ViewCompat.postOnAnimation(MapView.this, this);
+				return;
+			}
+			try {
+				tilesCache.onVisible();
+			} finally {
+				lock.unlock();
+			}
 		}
+	};
 
-		drawMyLocation(canvas);
+	@Override
+	protected void onDetachedFromWindow() {
+		stopRenderThread();
+		tilesCache.unregisterTrimCallbacks(getContext());
+		frameCache.release();
+		zoomSnapshot.release();
+		pinching = false;
+		super.onDetachedFromWindow();
+	}
+
+	public boolean isRenderThreadEnabled() {
+		return renderThreadEnabled;
+	}
+
+	/**
+	 * Draws the map on a dedicated thread into a SurfaceView instead of in
+	 * onDraw(), so heavy frames do not hold up touch handling. The UI thread
+	 * keeps handling gestures and hands every change to the render thread.
+	 */
+	public void setRenderThreadEnabled(boolean renderThreadEnabled) {
+		if (this.renderThreadEnabled == renderThreadEnabled)
+			return;
+		this.renderThreadEnabled = renderThreadEnabled;
+		if (!renderThreadEnabled) {
+			stopRenderThread();
+			removeView(surfaceView);
+			surfaceView = null;
+		} else if (getWindowToken() != null) {
+			startRenderThread();
+		}
+		invalidate();
+	}
+
+	// the surface view stays while the mode is on, the thread only while the
+	// view is attached
+	private void startRenderThread() {
+		if (renderThread != null)
+			return;
+		if (surfaceView == null) {
+			surfaceView = new SurfaceView(getContext());
+			addView(surfaceView, 0);
+		}
+		renderThread = new MapRenderThread(renderer);
+		surfaceView.getHolder().addCallback(renderThread);
+		renderThread.start();
+		publishFrame();
+	}
+
+	private void stopRenderThread() {
+		if (renderThread == null)
+			return;
+		MapRenderThread thread = renderThread;
+		renderThread = null;
+		thread.quit();
+		surfaceView.getHolder().removeCallback(thread);
+	}
+
+	@Override
+	public void onDraw(Canvas canvas) {
+
+		if (currentTileSize == 0)
+			return;
+
+		// the render thread draws the map, the view only runs the scroller
+		if (renderThread == null) {
+			uiFrame.set(getScrollX(), getScrollY(), getWidth(), getHeight(), zoomLevel, mapSize, currentTileSize, location, pinching, getOverlaySnapshot(), getRoute());
+			drawFrame(canvas, uiFrame);
+		}
 
 		if (scroller.computeScrollOffset()) {
 			scrollTo(scroller.getCurrX(), scroller.getCurrY());
 		}
+	}
+
+	private final MapRenderThread.Renderer renderer = new MapRenderThread.Renderer() {
+		@Override
+		public void drawFrame(Canvas canvas, FrameState frame) {
+			// the surface is not scrolled with the view
+			canvas.translate(-frame.scrollX, -frame.scrollY);
+			MapView.this.drawFrame(canvas, frame);
+		}
+	};
+
+	// draws all layers, on the UI thread from onDraw() or on the render thread
+	// into its surface. Only the thread drawing waits for the cache lock, the
+	// UI thread draws only while there is no render thread to wait for.
+	@SuppressLint("NewApi")
+	private void drawFrame(Canvas canvas, FrameState frame) {
+
+		long t1 = System.nanoTime();
+
+		ReentrantLock lock = tilesCache.getLock();
+		lock.lock();
+		try {
+			this.frame = frame;
+
+			int sx1 = frame.scrollX;
+			int sy1 = frame.scrollY;
+
+			int sx2 = sx1 + frame.width;
+			int sy2 = sy1 + frame.height;
+
+			int zoom = MapUtils.getZoomLevelAsInt(frame.zoomLevel);
+			tilesCache.setZoomLevel(zoom);
+
+			// invalidate(Rect) redraws only the dirty part of the view,
+			// anything outside the clip is skipped
+			if (!canvas.getClipBounds(clipRect))
+				clipRect.set(sx1, sy1, sx2, sy2);
+
+			if (!drawZoomSnapshot(canvas, sx1, sy1, sx2, sy2)) {
+				wantedTiles.clear();
+				pinnedTiles.clear();
+
+				if (!drawFrameCache(canvas, zoom, sx1, sy1, sx2, sy2))
+					drawTiles(canvas, zoom, frame.tileSize, sx1, sy1, sx2, sy2, clipRect);
+
+				submitWantedTiles();
+
+				pinnedTiles.sort();
+				tilesCache.setPinnedTiles(pinnedTiles);
+			}
+
+			drawRoute(canvas);
+
+			// the margin keeps the overlays anchored just outside the clip
+			// whose bitmaps reach into it
+			OverlayIndex index = frame.overlays.get(zoom);
+			int count = queryOverlays(index, clipRect.left, clipRect.top, clipRect.right, clipRect.bottom, frame.mapSize, drawnOverlays);
+
+			for (int i = 0; i < count; i++) {
+				Overlay overlay = drawnOverlays.get(i);
+				overlay.ensureZoomLevel(frame.zoomLevel, tileSize);
+				if (isOverlayInClip(overlay))
+					drawOverlay(canvas, overlay);
+			}
+
+			drawMyLocation(canvas);
+
+			tilesCache.onFrameDrawn();
+		} finally {
+			lock.unlock();
+		}
 
 		long t2 = System.nanoTime();
 		// log(canvas.isHardwareAccelerated() + " onDraw: " + ((t2 - t1) / 1e6)
 		// + " ms");
 	}
 
-	private Overlay findOverlay(int x, int y) {
+	private void prefetchFling(int startX, int startY, int finalX, int finalY) {
+		if (tilesProvider == null || currentTileSize == 0)
+			return;
+
+		tilesProvider.cancelPrefetch();
+
+		int zoom = MapUtils.getZoomLevelAsInt(zoomLevel);
 		int w = getWidth();
 		int h = getHeight();
 
-		int sx1 = getScrollX();
-		int sy1 = getScrollY();
+		// prefetching is skipped rather than waiting for the render thread
+		ReentrantLock lock = tilesCache.getLock();
+		if (!lock.tryLock())
+			return;
+		try {
+			// the map comes to rest at the destination so it goes first, then
+			// the trajectory is sampled every half screen and every sample
+			// only adds the tiles the previous one did not cover
+			getTileBounds(prefetchBounds, currentTileSize, mapSize, finalX, finalY, finalX + w, finalY + h);
+			prefetchTiles(zoom, prefetchBounds, null, 0);
+
+			getTileBounds(prefetchCovered, currentTileSize, mapSize, startX, startY, startX + w, startY + h);
+			double distance = Math.hypot(finalX - startX, finalY - startY);
+			int steps = (int) Math.ceil(distance / (Math.min(w, h) / 2d));
+			for (int i = 1; i < steps; i++) {
+				int x = startX + (int) ((finalX - startX) * (double) i / steps);
+				int y = startY + (int) ((finalY - startY) * (double) i / steps);
+				getTileBounds(prefetchBounds, currentTileSize, mapSize, x, y, x + w, y + h);
+				prefetchTiles(zoom, prefetchBounds, prefetchCovered, i);
+				prefetchCovered.set(prefetchBounds);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
 
-		int sx2 = sx1 + w;
-		int sy2 = sy1 + h;
-
-		x += sx1;
-		y += sy1;
-
-		List<Overlay> overlays = overlaysMap.get(MapUtils.getZoomLevelAsInt(zoomLevel));
-		if (overlays == null)
-			overlays = this.overlays;
-
-		if (overlays != null) {
-			dummyOverlay.lat = MapUtils.pixelYToLatitude(sy1, zoomLevel, tileSize);
-			int ind1 = Collections.binarySearch(overlays, dummyOverlay);
-			ind1 = ind1 < 0 ? -ind1 - 1 : ind1;
-
-			dummyOverlay.lat = MapUtils.pixelYToLatitude(sy2, zoomLevel, tileSize);
-			int ind2 = Collections.binarySearch(overlays, dummyOverlay);
-			ind2 = ind2 < 0 ? -ind2 - 1 : ind2;
-
-			if (ind1 >= 0 && ind1 <= overlays.size() && ind2 >= 0 && ind2 <= overlays.size() && ind1 <= ind2) {
-				Overlay result = null;
-				int min = Integer.MAX_VALUE;
-				for (int i = ind1; i < ind2; i++) {
-					Overlay overlay = overlays.get(i);
-					if (overlay.rect.contains(x, y)) {
-						int dx = x - (int) overlay.rect.exactCenterX();
-						int dy = y - (int) overlay.rect.exactCenterY();
-						int d = dx * dx + dy * dy;
-						if (min > d) {
-							result = overlay;
-							min = d;
-						}
-					}
+	// the tiles covering the given rectangle of the map, bounds included
+	private static void getTileBounds(Rect tiles, double tileSize, int mapSize, int sx1, int sy1, int sx2, int sy2) {
+		tiles.left = (int) (Math.max(0, sx1) / tileSize);
+		tiles.top = (int) (Math.max(0, sy1) / tileSize);
+		tiles.right = (int) (Math.min(mapSize - 1, sx2) / tileSize);
+		tiles.bottom = (int) (Math.min(mapSize - 1, sy2) / tileSize);
+	}
+
+	// prefetches the missing tiles of the bounds that are not in skip, the
+	// tiles cache lock must be held
+	private void prefetchTiles(int zoom, Rect tiles, Rect skip, int rank) {
+		for (int tileX = tiles.left; tileX <= tiles.right; tileX++) {
+			for (int tileY = tiles.top; tileY <= tiles.bottom; tileY++) {
+				if (skip != null && tileX >= skip.left && tileX <= skip.right && tileY >= skip.top && tileY <= skip.bottom)
+					continue;
+				if (tilesCache.get(tileX, tileY, zoom) == null)
+					tilesProvider.prefetchTileAsync(zoom, tileX, tileY, rank);
+			}
+		}
+	}
+
+	// prefetches the tiles of the given integer level that cover the viewport
+	// the map would have at the given zoom when zooming around (dx, dy)
+	private void prefetchZoom(double zoom, int tileZoom, double dx, double dy) {
+		if (tilesProvider == null || mapSize == 0)
+			return;
+
+		int w = getWidth();
+		int h = getHeight();
+
+		double left = dx * w;
+		double top = dy * h;
+
+		int targetMapSize = MapUtils.getMapSize(zoom, tileSize);
+		double mapScale = (double) targetMapSize / mapSize;
+
+		int sx = (int) Math.round((getScrollX() + left) * mapScale - left);
+		int sy = (int) Math.round((getScrollY() + top) * mapScale - top);
+		sx = Math.max(0, Math.min(sx, targetMapSize - w));
+		sy = Math.max(0, Math.min(sy, targetMapSize - h));
+
+		double targetTileSize = (double) targetMapSize / (1 << tileZoom);
+		getTileBounds(prefetchBounds, targetTileSize, targetMapSize, sx, sy, sx + w, sy + h);
+		// prefetching is skipped rather than waiting for the render thread
+		ReentrantLock lock = tilesCache.getLock();
+		if (!lock.tryLock())
+			return;
+		try {
+			prefetchTiles(tileZoom, prefetchBounds, null, 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void anticipateZoom(double zoom, double dx, double dy) {
+		long now = SystemClock.uptimeMillis();
+		if (lastZoomTime > 0 && now > lastZoomTime) {
+			double speed = (zoom - zoomLevel) / (now - lastZoomTime);
+			zoomSpeed += (speed - zoomSpeed) / 3d;
+		}
+		lastZoomTime = now;
+
+		double predicted = Math.max(minZoomLevel, Math.min(maxZoomLevel, zoom + zoomSpeed * ZOOM_LOOKAHEAD));
+		int current = MapUtils.getZoomLevelAsInt(zoom);
+		int target = MapUtils.getZoomLevelAsInt(predicted);
+		if (target == current || target == anticipatedZoomLevel)
+			return;
+
+		target = target > current ? current + 1 : current - 1;
+		anticipatedZoomLevel = target;
+
+		// zooming in, the next level covers the largest area right where the
+		// rounding flips; zooming out it covers more the farther we go
+		tilesProvider.cancelPrefetch();
+		prefetchZoom(target > current ? target - .5d : target, target, dx, dy);
+	}
+
+	private Overlay findOverlay(int x, int y) {
+		x += getScrollX();
+		y += getScrollY();
+
+		// the rects of the overlays drawn around the point, written by the
+		// frames without a lock, a tap racing a frame sees the rect of either
+		OverlayIndex index = getOverlaySnapshot().get(MapUtils.getZoomLevelAsInt(zoomLevel));
+		int count = queryOverlays(index, x, y, x, y, mapSize, tappedOverlays);
+
+		Overlay result = null;
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			Overlay overlay = tappedOverlays.get(i);
+			if (overlay.rect.contains(x, y)) {
+				int dx = x - (int) overlay.rect.exactCenterX();
+				int dy = y - (int) overlay.rect.exactCenterY();
+				int d = dx * dx + dy * dy;
+				if (min > d) {
+					result = overlay;
+					min = d;
 				}
-				return result;
 			}
 		}
-		return null;
+		return result;
 	}
 
 	public void showBalloon(Overlay overlay) {
@@ -633,6 +1310,9 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		this.minZoomLevel = Math.max(minZoomLevel, this.minZoomLevel);
 
 		updateSizes(w, h);
+		updateViewport();
+		if (renderThread != null)
+			publishFrame();
 
 		log("zoomLevel = " + zoomLevel);
 		log("mapSize = " + mapSize);
@@ -652,7 +1332,10 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 	private void zoom(double scale, double dx, double dy) {
 		if (zoomAnimation != null)
 			zoomAnimation.cancel();
-		zoomTo(zoomLevel * scale, dx, dy);
+		double zoom = zoomLevel * scale;
+		if (tilesProvider != null)
+			anticipateZoom(zoom, dx, dy);
+		zoomTo(zoom, dx, dy);
 	}
 
 	public void zoomToSpan(double lat, double lng) {
@@ -673,6 +1356,11 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 	}
 
 	private void zoomToAnim(double zoom, double dx, double dy) {
+		zoom = Math.max(minZoomLevel, Math.min(maxZoomLevel, zoom));
+		if (tilesProvider != null) {
+			tilesProvider.cancelPrefetch();
+			prefetchZoom(zoom, MapUtils.getZoomLevelAsInt(zoom), dx, dy);
+		}
 		zoomAnimation.reset(zoomLevel, zoom, dx, dy);
 		this.startAnimation(zoomAnimation);
 	}
@@ -740,6 +1428,40 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		x = Math.max(0, Math.min(x, maxScrollX));
 		y = Math.max(0, Math.min(y, maxScrollY));
 		super.scrollTo(x, y);
+		updateViewport();
+		if (renderThread != null) {
+			layoutSurface();
+			publishFrame();
+		}
+	}
+
+	@Override
+	public void invalidate() {
+		super.invalidate();
+		if (renderThread != null)
+			publishFrame();
+	}
+
+	// hands the current gesture state to the render thread
+	private void publishFrame() {
+		if (currentTileSize == 0)
+			return;
+		FrameState frame = renderThread.getBackFrame();
+		frame.set(getScrollX(), getScrollY(), getWidth(), getHeight(), zoomLevel, mapSize, currentTileSize, location, pinching, getOverlaySnapshot(), getRoute());
+		renderThread.publish();
+	}
+
+	private void updateViewport() {
+		if (tilesProvider == null || currentTileSize == 0)
+			return;
+
+		int sx1 = getScrollX();
+		int sy1 = getScrollY();
+		int left = MapUtils.pixelXToTileX(sx1, currentTileSize);
+		int top = MapUtils.pixelYToTileY(sy1, currentTileSize);
+		int right = MapUtils.pixelXToTileX(sx1 + getWidth(), currentTileSize);
+		int bottom = MapUtils.pixelYToTileY(sy1 + getHeight(), currentTileSize);
+		tilesProvider.setViewport(MapUtils.getZoomLevelAsInt(zoomLevel), left, top, right, bottom);
 	}
 
 	@Override
@@ -748,10 +1470,11 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		if (tile == null)
 			return;
 
-		int tx1 = tileX * currentTileSize;
-		int tx2 = tx1 + currentTileSize;
-		int ty1 = tileY * currentTileSize;
-		int ty2 = ty1 + currentTileSize;
+		double size = (double) mapSize / (1 << zoomLevel);
+		int tx1 = (int) (tileX * size);
+		int tx2 = (int) Math.ceil((tileX + 1) * size);
+		int ty1 = (int) (tileY * size);
+		int ty2 = (int) Math.ceil((tileY + 1) * size);
 
 		int sx1 = getScrollX();
 		int sy1 = getScrollY();
@@ -759,12 +1482,53 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		int sy2 = sy1 + getHeight();
 
 		if (tx1 <= sx2 && tx2 >= sx1 && ty1 <= sy2 && ty2 >= sy1) {
-			invalidate();
+			if (dirtyRect.isEmpty())
+				dirtyRect.set(tx1, ty1, tx2, ty2);
+			else
+				dirtyRect.union(tx1, ty1, tx2, ty2);
 		}
 
+		zoomSnapshot.onTileArrived(tile, zoomLevel, tileX, tileY);
+
 		tilesCache.put(tileX, tileY, zoomLevel, tile);
 	}
 
+	private TilesProvider.OnTilesAvailableListener onTilesAvailableListener = new TilesProvider.OnTilesAvailableListener() {
+		@Override
+		public void onTilesAvailable() {
+			ViewCompat.postOnAnimation(MapView.this, deliverResults);
+		}
+	};
+
+	private Runnable deliverResults = new Runnable() {
+		@Override
+		public void run() {
+			if (tilesProvider == null)
+				return;
+
+			// the results wait for the next frame rather than for the render
+			// thread
+			ReentrantLock lock = tilesCache.getLock();
+			if (!lock.tryLock()) {
+				ViewCompat.postOnAnimation(MapView.this, this);
+				return;
+			}
+
+			dirtyRect.setEmpty();
+			try {
+				tilesProvider.deliverResults();
+			} finally {
+				lock.unlock();
+			}
+			if (dirtyRect.isEmpty())
+				return;
+			if (renderThread != null)
+				renderThread.requestFrame();
+			else
+				invalidate(dirtyRect);
+		}
+	};
+
 	public void moveTo(final double lat, final double lng) {
 		post(new Runnable() {
 			@Override
@@ -804,91 +1568,64 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	}
 
+	// the frames keep drawing the previous clusters until the next ones are
+	// built on OverlayClusterer.EXECUTOR, only the last request is kept
 	private void doPrepareOverlays(boolean collapse) {
+		Collections.sort(overlays);
+		overlaysChanged = true;
+		final int generation = ++clustersGeneration;
 
-		overlaysMap.clear();
-
-		if (collapse) {
-
-			int min = (int) minZoomLevel;
-			int max = (int) maxZoomLevel;
-
-			int step = Math.min(getWidth(), getHeight()) / 4; // in pixels
-			SparseArray<Overlay> map = new SparseArray<Overlay>();
-			for (int zoom = min; zoom <= max - 1; zoom++) {
-				map.clear();
-
-				List<Overlay> list = overlaysMap.get(zoom);
-				int mapSize = MapUtils.getMapSize(zoom, tileSize);
-				int size = mapSize / step;
-
-				for (Overlay overlay : overlays) {
-
-					overlay.ensureZoomLevel(zoom, tileSize);
-					int x = overlay.x;
-					int y = overlay.y;
-
-					int index = (x / step) * size + y / step;
-
-					Overlay overlayCollapsed = map.get(index);
-
-					if (overlayCollapsed == null) {
-						if (list == null) {
-							list = new ArrayList<MapView.Overlay>();
-							overlaysMap.put(zoom, list);
-						}
-
-						overlayCollapsed = overlay.copy();
-						overlayCollapsed.items = new ArrayList<MapView.Overlay>();
-						list.add(overlayCollapsed);
-
-						map.put(index, overlayCollapsed);
-					} else {
-						overlayCollapsed.lat = (overlayCollapsed.lat + overlay.lat) / 2;
-						overlayCollapsed.lng = (overlayCollapsed.lng + overlay.lng) / 2;
-					}
-					overlayCollapsed.count++;
-					overlayCollapsed.items.add(overlay);
-				}
-
-				if (list != null) {
-					removeOverCollapsedOverlays(list);
-					Collections.sort(list);
-				}
-			}
-			Collections.sort(overlays);
-			overlaysMap.put(max, overlays);
-		} else {
-			Collections.sort(overlays);
+		if (!collapse) {
+			overlaySnapshot = overlaySnapshot.withClusters(new SparseArray<OverlayIndex>());
+			invalidate();
+			return;
 		}
-	}
 
-	private void removeOverCollapsedOverlays(List<Overlay> overlays) {
-		List<Overlay> toAdd = new ArrayList<MapView.Overlay>();
-		Iterator<Overlay> i = overlays.iterator();
-		while (i.hasNext()) {
-			Overlay overlay = i.next();
-			if (overlay.items != null && overlay.items.size() < 6) {
-				toAdd.addAll(overlay.items);
-				i.remove();
+		final List<Overlay> list = new ArrayList<Overlay>(overlays);
+		final int min = (int) minZoomLevel;
+		final int max = (int) maxZoomLevel;
+		final int radius = Math.max(1, Math.min(getWidth(), getHeight()) / 4); // in pixels
+		final int tileSize = this.tileSize;
+		OverlayClusterer.EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				SparseArray<List<Overlay>> overlaysMap = new SparseArray<List<Overlay>>();
+				new OverlayClusterer().cluster(list, min, max, radius, tileSize, overlaysMap);
+
+				final SparseArray<OverlayIndex> clusters = new SparseArray<OverlayIndex>();
+				for (int i = 0; i < overlaysMap.size(); i++)
+					clusters.put(overlaysMap.keyAt(i), new OverlayIndex(overlaysMap.valueAt(i)));
+
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (generation != clustersGeneration)
+							return;
+						overlaySnapshot = overlaySnapshot.withClusters(clusters);
+						invalidate();
+					}
+				});
 			}
-		}
-		overlays.addAll(toAdd);
+		});
 	}
 
 	public void addOverlay(Overlay overlay) {
 		overlays.add(overlay);
+		overlaysChanged = true;
 	}
 
 	public void addRoutePoint(RoutePoint routePoint) {
 		if (routePoints == null)
 			routePoints = new ArrayList<MapView.RoutePoint>();
 		routePoints.add(routePoint);
+		route = null;
 	}
 
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+		if (surfaceView != null)
+			surfaceView.measure(MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.EXACTLY), MeasureSpec.makeMeasureSpec(getMeasuredHeight(), MeasureSpec.EXACTLY));
 		if (balloon != null && balloon.getVisibility() == View.VISIBLE) {
 			measureChild(balloon, MeasureSpec.makeMeasureSpec(MeasureSpec.getSize(widthMeasureSpec), MeasureSpec.AT_MOST), MeasureSpec.makeMeasureSpec(MeasureSpec.getSize(heightMeasureSpec), MeasureSpec.AT_MOST));
 		}
@@ -896,21 +1633,36 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 
 	@Override
 	protected void onLayout(boolean changed, int l, int t, int r, int b) {
+		if (surfaceView != null)
+			layoutSurface();
 		changeBalloonPosition();
 	}
 
+	// children are scrolled with the view, the surface has to stay in place
+	private void layoutSurface() {
+		int sx = getScrollX();
+		int sy = getScrollY();
+		surfaceView.layout(sx, sy, sx + getWidth(), sy + getHeight());
+	}
+
 	private void changeBalloonPosition() {
 		if (balloon != null && balloon.getVisibility() == View.VISIBLE) {
 			Overlay overlay = balloon.overlay;
-			overlay.ensureZoomLevel(zoomLevel, tileSize);
-			int l1 = overlay.x - balloon.getMeasuredWidth() / 2;
-			int t1 = overlay.y - balloon.getMeasuredHeight() - (overlay.text == null ? overlay.bitmap.getHeight() : overlay.bitmap.getHeight() / 2);
+			// the overlay position belongs to the frame being drawn
+			int x = MapUtils.longitudeToPixelX(overlay.lng, zoomLevel, tileSize);
+			int y = MapUtils.latitudeToPixelY(overlay.lat, zoomLevel, tileSize);
+			int l1 = x - balloon.getMeasuredWidth() / 2;
+			int t1 = y - balloon.getMeasuredHeight() - (overlay.text == null ? overlay.bitmap.getHeight() : overlay.bitmap.getHeight() / 2);
 			int r1 = l1 + balloon.getMeasuredWidth();
 			int b1 = t1 + balloon.getMeasuredHeight();
 			balloon.layout(l1, t1, r1, b1);
 		}
 	}
 
+	public TilesCache getTilesCache() {
+		return tilesCache;
+	}
+
 	public TilesProvider getTilesProvider() {
 		return tilesProvider;
 	}
@@ -921,9 +1673,31 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		minZoomLevel = tilesProvider.getMinZoomLevel();
 		maxZoomLevel = Math.min(tilesProvider.getMaxZoomLevel(), MAX_ZOOM_LEVEL);
 		this.tilesProvider.setOnTileListener(this);
-		tilesCache.clear();
+		this.tilesProvider.setOnTilesAvailableListener(onTilesAvailableListener);
+		this.tilesProvider.setBitmapPool(tilesCache.getBitmapPool());
+		resetTiles.run();
 	}
 
+	// drops the tiles of the previous provider once no frame is being drawn
+	private Runnable resetTiles = new Runnable() {
+		@Override
+		public void run() {
+			ReentrantLock lock = tilesCache.getLock();
+			if (!lock.tryLock()) {
+				ViewCompat.postOnAnimation(MapView.this, this);
+				return;
+			}
+			try {
+				tilesCache.clear();
+				frameCache.invalidate();
+				zoomSnapshot.invalidate();
+				submittedTiles.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
 	public MapViewBalloon getBalloon() {
 		return balloon;
 	}
@@ -967,6 +1741,15 @@ public class MapView extends ViewGroup implements TilesProvider.OnTileListener {
 		locationManager.removeUpdates(locationListener);
 	}
 
+	/**
+	 * Shows the given fix as the current location, for fixes that come from
+	 * another source than the updates enableMyLocation() asks for. Must be
+	 * called on the UI thread while the map is attached to a window.
+	 */
+	public void setMyLocation(Location location) {
+		locationListener.onLocationChanged(location);
+	}
+
 	public void moveToMyLocation() {
 		if (location != null) {
 			moveTo(location.getLatitude(), location.getLongitude());
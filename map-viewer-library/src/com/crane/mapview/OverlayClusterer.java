@@ -0,0 +1,297 @@
+package com.crane.mapview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.SparseArray;
+
+import com.crane.mapview.MapView.Overlay;
+
+// Clusters overlays for every zoom level below the maximum. Each level is
+// built from the level above it rather than from all the overlays: a KD-tree
+// over the points of the level above finds the neighbours within the cluster
+// radius of every point not clustered yet, and they are merged into a cluster
+// at their centroid weighted by the overlays they hold. A level costs a sort
+// of its points and a radius query for each of them. Levels shrink as they go
+// down, but the ones near the maximum zoom hold about every overlay, so the
+// hierarchy costs up to a sort per zoom level; a level where nothing merged
+// reuses the tree of the one above. Points are in coordinates projected at
+// zoom level 0, scaled to [0, 1], and the arrays are allocated once and shared
+// by all levels. Clustering runs on EXECUTOR, off the UI thread.
+final class OverlayClusterer extends KdTree {
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "MapCluster #" + mCount.getAndIncrement());
+		}
+	};
+
+	static final Executor EXECUTOR = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+
+	private static final int NODE_SIZE = 64;
+
+	// clusters of fewer overlays are shown as the overlays themselves
+	private static final int MIN_CLUSTER_SIZE = 6;
+
+	// points of the level being clustered, in x and y
+	private int[] weights;
+
+	private Overlay[] points;
+
+	private int size;
+
+	// points of the level below, built from the ones above
+	private double[] nextX;
+
+	private double[] nextY;
+
+	private int[] nextWeights;
+
+	private Overlay[] nextPoints;
+
+	private int nextSize;
+
+	private boolean[] clustered;
+
+	private int[] stack = new int[96];
+
+	private int[] found = new int[64];
+
+	private int foundCount;
+
+	// overlays shown at a level and their drawing order, north to south, as
+	// the projected y in the high half and the position in the low half
+	private Overlay[] shown;
+
+	private long[] order;
+
+	OverlayClusterer() {
+		super(NODE_SIZE);
+	}
+
+	// puts the overlays shown at every zoom level from minZoom to maxZoom - 1
+	// into levels, radius is in pixels
+	void cluster(List<Overlay> overlays, int minZoom, int maxZoom, int radius, int tileSize, SparseArray<List<Overlay>> levels) {
+		int n = overlays.size();
+		if (n == 0)
+			return;
+
+		x = new double[n];
+		y = new double[n];
+		weights = new int[n];
+		points = new Overlay[n];
+		nextX = new double[n];
+		nextY = new double[n];
+		nextWeights = new int[n];
+		nextPoints = new Overlay[n];
+		clustered = new boolean[n];
+		shown = new Overlay[n];
+		order = new long[n];
+
+		for (int i = 0; i < n; i++) {
+			Overlay overlay = overlays.get(i);
+			x[i] = MapUtils.longitudeToMercatorX(overlay.lng);
+			y[i] = mercatorY(overlay.lat);
+			weights[i] = 1;
+			points[i] = overlay;
+		}
+		size = n;
+
+		boolean sorted = false;
+		for (int zoom = maxZoom - 1; zoom >= minZoom; zoom--) {
+			clusterLevel(radius / (tileSize * Math.pow(2, zoom)), sorted);
+			// nothing merged, the level below is the same tree
+			sorted = nextSize == size;
+			levels.put(zoom, listLevel());
+			swapLevels();
+		}
+
+		x = y = nextX = nextY = null;
+		weights = nextWeights = null;
+		points = nextPoints = null;
+		clustered = null;
+		shown = null;
+		order = null;
+	}
+
+	private void clusterLevel(double r, boolean sorted) {
+		if (!sorted)
+			sort(size);
+		Arrays.fill(clustered, 0, size, false);
+
+		nextSize = 0;
+		for (int i = 0; i < size; i++) {
+			if (clustered[i])
+				continue;
+			clustered[i] = true;
+
+			within(x[i], y[i], r);
+			if (foundCount == 0) {
+				nextX[nextSize] = x[i];
+				nextY[nextSize] = y[i];
+				nextWeights[nextSize] = weights[i];
+				nextPoints[nextSize] = points[i];
+				nextSize++;
+				continue;
+			}
+
+			Overlay cluster = points[i].copy();
+			cluster.items = new ArrayList<Overlay>(foundCount + 1);
+			cluster.items.add(points[i]);
+			double wx = x[i] * weights[i];
+			double wy = y[i] * weights[i];
+			int weight = weights[i];
+			for (int k = 0; k < foundCount; k++) {
+				int j = found[k];
+				clustered[j] = true;
+				cluster.items.add(points[j]);
+				wx += x[j] * weights[j];
+				wy += y[j] * weights[j];
+				weight += weights[j];
+			}
+			wx /= weight;
+			wy /= weight;
+			cluster.lng = MapUtils.mercatorXToLongitude(wx);
+			cluster.lat = MapUtils.mercatorYToLatitude(wy);
+			cluster.count = weight;
+
+			nextX[nextSize] = wx;
+			nextY[nextSize] = wy;
+			nextWeights[nextSize] = weight;
+			nextPoints[nextSize] = cluster;
+			nextSize++;
+		}
+	}
+
+	// the overlays shown at the level below in the order of
+	// MapView.Overlay.compareTo(), small clusters replaced by their overlays
+	private List<Overlay> listLevel() {
+		int count = 0;
+		for (int i = 0; i < nextSize; i++) {
+			Overlay overlay = nextPoints[i];
+			if (overlay.count > 0 && overlay.count < MIN_CLUSTER_SIZE)
+				count = addOverlays(overlay, count);
+			else
+				count = addShown(overlay, nextY[i], count);
+		}
+
+		Arrays.sort(order, 0, count);
+		List<Overlay> list = new ArrayList<Overlay>(count);
+		for (int i = 0; i < count; i++)
+			list.add(shown[(int) order[i]]);
+		Arrays.fill(shown, 0, count, null);
+		return list;
+	}
+
+	// the overlays a cluster is made of, through the clusters it holds
+	private int addOverlays(Overlay overlay, int count) {
+		if (overlay.items == null)
+			return addShown(overlay, mercatorY(overlay.lat), count);
+		for (int i = 0; i < overlay.items.size(); i++)
+			count = addOverlays(overlay.items.get(i), count);
+		return count;
+	}
+
+	private int addShown(Overlay overlay, double y, int count) {
+		shown[count] = overlay;
+		// y is in [0, 1], so the bits of its float order like its value
+		order[count] = (long) Float.floatToIntBits((float) y) << 32 | count;
+		return count + 1;
+	}
+
+	// latitudes beyond the Mercator range would project outside [0, 1] or to
+	// infinity at the poles, they are drawn at the edge of the map anyway
+	private static double mercatorY(double latitude) {
+		double y = MapUtils.latitudeToMercatorY(Math.max(MapUtils.LATITUDE_MIN, Math.min(MapUtils.LATITUDE_MAX, latitude)));
+		return Math.max(0d, Math.min(1d, y));
+	}
+
+	private void swapLevels() {
+		Arrays.fill(points, 0, size, null);
+		double[] f = x;
+		x = nextX;
+		nextX = f;
+		f = y;
+		y = nextY;
+		nextY = f;
+		int[] w = weights;
+		weights = nextWeights;
+		nextWeights = w;
+		Overlay[] p = points;
+		points = nextPoints;
+		nextPoints = p;
+		size = nextSize;
+	}
+
+	// collects into found the points within r of (qx, qy) not clustered yet
+	private void within(double qx, double qy, double r) {
+		double r2 = r * r;
+		foundCount = 0;
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = size - 1;
+		stack[sp++] = 0;
+
+		while (sp > 0) {
+			int axis = stack[--sp];
+			int right = stack[--sp];
+			int left = stack[--sp];
+
+			if (isLeaf(left, right)) {
+				for (int i = left; i <= right; i++)
+					addFound(i, qx, qy, r2);
+				continue;
+			}
+
+			int m = (left + right) >> 1;
+			addFound(m, qx, qy, r2);
+
+			double c = axis == 0 ? x[m] : y[m];
+			double q = axis == 0 ? qx : qy;
+			if (sp + 6 > stack.length)
+				stack = ArrayUtils.copyOf(stack, stack.length * 2);
+			if (q - r <= c) {
+				stack[sp++] = left;
+				stack[sp++] = m - 1;
+				stack[sp++] = 1 - axis;
+			}
+			if (q + r >= c) {
+				stack[sp++] = m + 1;
+				stack[sp++] = right;
+				stack[sp++] = 1 - axis;
+			}
+		}
+	}
+
+	private void addFound(int i, double qx, double qy, double r2) {
+		if (clustered[i])
+			return;
+		double dx = x[i] - qx;
+		double dy = y[i] - qy;
+		if (dx * dx + dy * dy > r2)
+			return;
+		if (foundCount == found.length)
+			found = ArrayUtils.copyOf(found, foundCount * 2);
+		found[foundCount++] = i;
+	}
+
+	@Override
+	void swap(int i, int j) {
+		super.swap(i, j);
+		int w = weights[i];
+		weights[i] = weights[j];
+		weights[j] = w;
+		Overlay p = points[i];
+		points[i] = points[j];
+		points[j] = p;
+	}
+}
@@ -0,0 +1,118 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.crane.mapview.MapView.Overlay;
+
+// Static KD-tree of overlays in coordinates projected at zoom level 0, scaled
+// to [0, 1]. The tree adapts to how the overlays are spread, a query costs
+// about the depth of the tree plus the overlays found however dense a city is
+// or however far its outliers are. Results come in the order of the indexed
+// list. The index is not changed once built, every thread querying it has its
+// own Results.
+final class OverlayIndex extends KdTree {
+
+	// the overlays found by the last query and the ranges left to visit
+	static final class Results {
+
+		private int[] positions = new int[64];
+
+		private int[] stack = new int[96];
+
+		private Overlay[] overlays;
+
+		Overlay get(int i) {
+			return overlays[positions[i]];
+		}
+	}
+
+	private static final int NODE_SIZE = 16;
+
+	private final Overlay[] overlays;
+
+	// positions in the indexed list of the points in tree order
+	private final int[] entries;
+
+	OverlayIndex(List<Overlay> list) {
+		super(NODE_SIZE);
+		int n = list.size();
+		overlays = list.toArray(new Overlay[n]);
+
+		entries = new int[n];
+		x = new double[n];
+		y = new double[n];
+		for (int i = 0; i < n; i++) {
+			entries[i] = i;
+			x[i] = MapUtils.longitudeToMercatorX(overlays[i].lng);
+			y[i] = MapUtils.latitudeToMercatorY(overlays[i].lat);
+		}
+
+		sort(n);
+	}
+
+	// finds the overlays anchored in the rectangle, returns their count, the
+	// overlays are then read from results
+	int query(double x1, double y1, double x2, double y2, Results results) {
+		int[] positions = results.positions;
+		int[] stack = results.stack;
+		int count = 0;
+		int sp = 0;
+		if (entries.length > 0) {
+			stack[sp++] = 0;
+			stack[sp++] = entries.length - 1;
+			stack[sp++] = 0;
+		}
+
+		while (sp > 0) {
+			int axis = stack[--sp];
+			int right = stack[--sp];
+			int left = stack[--sp];
+
+			if (isLeaf(left, right)) {
+				for (int e = left; e <= right; e++) {
+					if (x[e] < x1 || x[e] > x2 || y[e] < y1 || y[e] > y2)
+						continue;
+					if (count == positions.length)
+						positions = results.positions = ArrayUtils.copyOf(positions, count * 2);
+					positions[count++] = entries[e];
+				}
+				continue;
+			}
+
+			int m = (left + right) >> 1;
+			if (x[m] >= x1 && x[m] <= x2 && y[m] >= y1 && y[m] <= y2) {
+				if (count == positions.length)
+					positions = results.positions = ArrayUtils.copyOf(positions, count * 2);
+				positions[count++] = entries[m];
+			}
+
+			double c = axis == 0 ? x[m] : y[m];
+			if (sp + 6 > stack.length)
+				stack = results.stack = ArrayUtils.copyOf(stack, stack.length * 2);
+			if ((axis == 0 ? x1 : y1) <= c) {
+				stack[sp++] = left;
+				stack[sp++] = m - 1;
+				stack[sp++] = 1 - axis;
+			}
+			if ((axis == 0 ? x2 : y2) >= c) {
+				stack[sp++] = m + 1;
+				stack[sp++] = right;
+				stack[sp++] = 1 - axis;
+			}
+		}
+
+		// back to the order of the list, which is also the drawing order
+		Arrays.sort(positions, 0, count);
+		results.overlays = overlays;
+		return count;
+	}
+
+	@Override
+	void swap(int i, int j) {
+		super.swap(i, j);
+		int e = entries[i];
+		entries[i] = entries[j];
+		entries[j] = e;
+	}
+}
@@ -0,0 +1,37 @@
+package com.crane.mapview;
+
+import android.util.SparseArray;
+
+// The indexes of the overlays and of their clusters at every zoom level as
+// of one point in time. Handed to the UI thread once built and never changed
+// afterwards, so frames drawn on the render thread read them without a lock
+// while the UI thread goes on adding overlays.
+final class OverlaySnapshot {
+
+	// indexes of the cluster lists by zoom level
+	private final SparseArray<OverlayIndex> clusters;
+
+	private final OverlayIndex overlays;
+
+	OverlaySnapshot(SparseArray<OverlayIndex> clusters, OverlayIndex overlays) {
+		this.clusters = clusters;
+		this.overlays = overlays;
+	}
+
+	// index of the overlays drawn at the zoom level, the clusters of the
+	// level if there are any
+	OverlayIndex get(int zoom) {
+		OverlayIndex index = clusters.get(zoom);
+		return index != null ? index : overlays;
+	}
+
+	// the same overlays with new clusters
+	OverlaySnapshot withClusters(SparseArray<OverlayIndex> clusters) {
+		return new OverlaySnapshot(clusters, overlays);
+	}
+
+	// the same clusters over the overlays as they are now
+	OverlaySnapshot withOverlays(OverlayIndex overlays) {
+		return new OverlaySnapshot(clusters, overlays);
+	}
+}
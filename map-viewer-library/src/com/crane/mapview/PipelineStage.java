@@ -0,0 +1,66 @@
+package com.crane.mapview;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+abstract class PipelineStage implements Runnable {
+
+	private final Executor executor;
+
+	private final int maxWorkers;
+
+	private final AtomicInteger workers = new AtomicInteger();
+
+	PipelineStage(Executor executor, int maxWorkers) {
+		this.executor = executor;
+		this.maxWorkers = maxWorkers;
+	}
+
+	// number of items this stage could process right now, 0 when it has to
+	// wait for the next stage
+	abstract int pending();
+
+	abstract void process();
+
+	final void schedule() {
+		for (;;) {
+			int n = workers.get();
+			if (n >= maxWorkers || n >= pending())
+				return;
+			if (workers.compareAndSet(n, n + 1))
+				executor.execute(this);
+		}
+	}
+
+	// waits for the workers to finish, nothing new should be queued meanwhile
+	final synchronized void awaitIdle() {
+		boolean interrupted = false;
+		while (workers.get() > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	final boolean isIdle() {
+		return workers.get() == 0;
+	}
+
+	@Override
+	public final void run() {
+		try {
+			process();
+		} finally {
+			if (workers.decrementAndGet() == 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+			schedule();
+		}
+	}
+}
@@ -6,20 +6,91 @@ public class Tile {
 
 	Bitmap bitmap;
 
+	public static final int MAX_ZOOM_LEVEL = 30;
+
+	// Tile keys are quadkeys: a marker bit at 2 * zoomLevel followed by the
+	// interleaved bits of tileX (even bits) and tileY (odd bits). Keys of a
+	// subtree form one contiguous range per zoom level, the parent is key >> 2
+	// and keys stay below 1 << 61 for zoom levels up to MAX_ZOOM_LEVEL.
+
 	public static long getKey(int tileX, int tileY, int zoomLevel) {
-		return tileX | ((long) (tileY) << 20) | (((long) (zoomLevel)) << 40);
+		// a coordinate of 1 << zoomLevel or more would spill into the marker
+		// bit and alias a key of another zoom level
+		if (zoomLevel < 0 || zoomLevel > MAX_ZOOM_LEVEL || (tileX >>> zoomLevel) != 0 || (tileY >>> zoomLevel) != 0)
+			throw new IllegalArgumentException("invalid tile coordinates at zoom level " + zoomLevel + ": " + tileX + ", " + tileY);
+		return (1L << (zoomLevel << 1)) | spread(tileX) | (spread(tileY) << 1);
 	}
 
 	public static int getTileXFromKey(long key) {
-		return (int) (key & (-1L >> 44));
+		return compact(key & ~(1L << (getZoomLevelFromKey(key) << 1)));
 	}
 
 	public static int getTileYFromKey(long key) {
-		return (int) ((key >> 20) & (-1 >> 44));
+		return compact((key & ~(1L << (getZoomLevelFromKey(key) << 1))) >>> 1);
 	}
 
 	public static int getZoomLevelFromKey(long key) {
-		return (int) ((key >> 40) & (-1 >> 44));
+		return (63 - Long.numberOfLeadingZeros(key)) >> 1;
+	}
+
+	public static long getParentKey(long key) {
+		return key >>> 2;
+	}
+
+	public static long getAncestorKey(long key, int levels) {
+		return key >>> (levels << 1);
+	}
+
+	// quadrant is (tileX & 1) | (tileY & 1) << 1 of the child
+	public static long getChildKey(long key, int quadrant) {
+		return (key << 2) | quadrant;
+	}
+
+	// descendants levels below the tile are keyed from getFirstDescendantKey
+	// to getLastDescendantKey inclusive
+	public static long getFirstDescendantKey(long key, int levels) {
+		return key << (levels << 1);
+	}
+
+	public static long getLastDescendantKey(long key, int levels) {
+		return ((key + 1) << (levels << 1)) - 1;
+	}
+
+	public static boolean isAncestorKey(long ancestor, long key) {
+		int levels = getZoomLevelFromKey(key) - getZoomLevelFromKey(ancestor);
+		return levels >= 0 && (key >>> (levels << 1)) == ancestor;
+	}
+
+	// returns -1 when the neighbour is outside the map
+	public static long getNeighborKey(long key, int dx, int dy) {
+		int zoomLevel = getZoomLevelFromKey(key);
+		int tileX = getTileXFromKey(key) + dx;
+		int tileY = getTileYFromKey(key) + dy;
+		int n = 1 << zoomLevel;
+		if (tileX < 0 || tileY < 0 || tileX >= n || tileY >= n)
+			return -1;
+		return getKey(tileX, tileY, zoomLevel);
+	}
+
+	// moves the lower 32 bits of v to the even bits of the result
+	private static long spread(int v) {
+		long x = v & 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	private static int compact(long x) {
+		x &= 0x5555555555555555L;
+		x = (x | (x >>> 1)) & 0x3333333333333333L;
+		x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) x;
 	}
 
 	public Tile(Bitmap bitmap) {
@@ -0,0 +1,84 @@
+package com.crane.mapview;
+
+import java.nio.ByteBuffer;
+
+public final class TileBatch {
+
+	private final TileRequest[] requests;
+
+	private final Tile[] tiles;
+
+	private int size;
+
+	TileBatch(int capacity) {
+		this.requests = new TileRequest[capacity];
+		this.tiles = new Tile[capacity];
+	}
+
+	void add(TileRequest request) {
+		requests[size++] = request;
+	}
+
+	TileRequest getRequest(int index) {
+		return requests[index];
+	}
+
+	void remove(int index) {
+		System.arraycopy(requests, index + 1, requests, index, size - index - 1);
+		System.arraycopy(tiles, index + 1, tiles, index, size - index - 1);
+		size--;
+		requests[size] = null;
+		tiles[size] = null;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			requests[i] = null;
+			tiles[i] = null;
+		}
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getZoomLevel() {
+		return requests[0].zoomLevel;
+	}
+
+	public int getTileX(int index) {
+		return requests[index].tileX;
+	}
+
+	public int getTileY(int index) {
+		return requests[index].tileY;
+	}
+
+	public int indexOf(int tileX, int tileY) {
+		for (int i = 0; i < size; i++)
+			if (requests[i].tileX == tileX && requests[i].tileY == tileY)
+				return i;
+		return -1;
+	}
+
+	public boolean isCanceled(int index) {
+		return requests[index].canceled;
+	}
+
+	public Tile getTile(int index) {
+		return tiles[index];
+	}
+
+	public void setTile(int index, Tile tile) {
+		tiles[index] = tile;
+	}
+
+	public ByteBuffer getData(int index) {
+		return requests[index].data;
+	}
+
+	public void setData(int index, ByteBuffer data) {
+		requests[index].data = data;
+	}
+}
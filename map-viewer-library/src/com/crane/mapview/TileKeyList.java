@@ -0,0 +1,80 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+
+final class TileKeyList {
+
+	private long[] keys;
+
+	private int size;
+
+	TileKeyList(int capacity) {
+		this.keys = new long[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	long get(int index) {
+		return keys[index];
+	}
+
+	void add(long key) {
+		if (size == keys.length)
+			keys = ArrayUtils.copyOf(keys, size * 2);
+		keys[size++] = key;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void sort() {
+		Arrays.sort(keys, 0, size);
+	}
+
+	// the list has to be sorted
+	boolean contains(long key) {
+		return ArrayUtils.binarySearch(keys, size, key) >= 0;
+	}
+
+	// keeps the list sorted, returns false when the key is already there
+	boolean insert(long key) {
+		int index = ArrayUtils.binarySearch(keys, size, key);
+		if (index >= 0)
+			return false;
+		index = -index - 1;
+		if (size == keys.length)
+			keys = ArrayUtils.copyOf(keys, size * 2);
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		keys[index] = key;
+		size++;
+		return true;
+	}
+
+	// both lists have to be sorted
+	void retainAll(TileKeyList other) {
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			if (other.contains(keys[i]))
+				keys[n++] = keys[i];
+		size = n;
+	}
+
+	void set(TileKeyList other) {
+		if (keys.length < other.size)
+			keys = new long[other.keys.length];
+		System.arraycopy(other.keys, 0, keys, 0, other.size);
+		size = other.size;
+	}
+
+	boolean equals(TileKeyList other) {
+		if (size != other.size)
+			return false;
+		for (int i = 0; i < size; i++)
+			if (keys[i] != other.keys[i])
+				return false;
+		return true;
+	}
+}
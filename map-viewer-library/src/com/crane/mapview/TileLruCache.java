@@ -0,0 +1,302 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+
+// Size bounded LRU cache of tiles keyed by primitive tile keys. Entries live
+// in parallel arrays linked into an intrusive LRU list, an open addressing
+// table maps keys to entries. get() does not allocate.
+// Not thread safe, used from the UI thread only.
+abstract class TileLruCache {
+
+	private static final int NONE = -1;
+
+	// hash table, holds entry indexes or NONE
+	private int[] table;
+
+	private int mask;
+
+	// entries
+	private long[] keys;
+
+	private Tile[] tiles;
+
+	private int[] sizes;
+
+	private int[] older;
+
+	private int[] newer;
+
+	// least and most recently used entries
+	private int eldest = NONE;
+
+	private int youngest = NONE;
+
+	// unused entries are chained through newer[]
+	private int free = NONE;
+
+	private int count;
+
+	private int size;
+
+	private int maxSize;
+
+	private int hitCount;
+
+	private int missCount;
+
+	private int evictionCount;
+
+	TileLruCache(int maxSize, int capacity) {
+		this.maxSize = maxSize;
+		allocate(Math.max(capacity, 16));
+	}
+
+	abstract int sizeOf(Tile tile);
+
+	// called for every entry that is evicted, removed or replaced
+	abstract void entryRemoved(boolean evicted, long key, Tile oldValue, Tile newValue);
+
+	// called for every key that was not cached before
+	void entryAdded(long key) {
+	}
+
+	// pinned entries are skipped by eviction
+	boolean isPinned(long key) {
+		return false;
+	}
+
+	private void allocate(int capacity) {
+		keys = keys == null ? new long[capacity] : ArrayUtils.copyOf(keys, capacity);
+		tiles = tiles == null ? new Tile[capacity] : ArrayUtils.copyOf(tiles, capacity);
+		sizes = sizes == null ? new int[capacity] : ArrayUtils.copyOf(sizes, capacity);
+		older = older == null ? new int[capacity] : ArrayUtils.copyOf(older, capacity);
+		int from = newer == null ? 0 : newer.length;
+		newer = newer == null ? new int[capacity] : ArrayUtils.copyOf(newer, capacity);
+		for (int i = capacity - 1; i >= from; i--) {
+			newer[i] = free;
+			free = i;
+		}
+
+		// keep the table at most half full
+		table = new int[Integer.highestOneBit(capacity) << 2];
+		mask = table.length - 1;
+		Arrays.fill(table, NONE);
+		for (int e = eldest; e != NONE; e = newer[e])
+			table[findSlot(keys[e])] = e;
+	}
+
+	Tile get(long key) {
+		int slot = findSlot(key);
+		int entry = table[slot];
+		if (entry == NONE) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		moveToYoungest(entry);
+		return tiles[entry];
+	}
+
+	// like get() but a missing key does not count as a miss
+	Tile getIfPresent(long key) {
+		int entry = table[findSlot(key)];
+		if (entry == NONE)
+			return null;
+		hitCount++;
+		moveToYoungest(entry);
+		return tiles[entry];
+	}
+
+	boolean contains(long key) {
+		return table[findSlot(key)] != NONE;
+	}
+
+	Tile put(long key, Tile tile) {
+		int slot = findSlot(key);
+		int entry = table[slot];
+		Tile previous = null;
+		if (entry != NONE) {
+			previous = tiles[entry];
+			size -= sizes[entry];
+			moveToYoungest(entry);
+		} else {
+			if (free == NONE) {
+				allocate(keys.length * 2);
+				slot = findSlot(key);
+			}
+			entry = free;
+			free = newer[entry];
+			keys[entry] = key;
+			table[slot] = entry;
+			linkYoungest(entry);
+			count++;
+		}
+		tiles[entry] = tile;
+		sizes[entry] = sizeOf(tile);
+		size += sizes[entry];
+
+		if (previous == null)
+			entryAdded(key);
+		else if (previous != tile)
+			entryRemoved(false, key, previous, tile);
+		trimToSize(maxSize);
+		return previous;
+	}
+
+	Tile remove(long key) {
+		int entry = table[findSlot(key)];
+		if (entry == NONE)
+			return null;
+		Tile tile = tiles[entry];
+		removeEntry(entry);
+		entryRemoved(false, key, tile, null);
+		return tile;
+	}
+
+	void trimToSize(int maxSize) {
+		int entry = eldest;
+		while (size > maxSize && entry != NONE) {
+			int next = newer[entry];
+			long key = keys[entry];
+			if (maxSize < 0 || !isPinned(key)) {
+				Tile tile = tiles[entry];
+				removeEntry(entry);
+				evictionCount++;
+				entryRemoved(true, key, tile, null);
+			}
+			entry = next;
+		}
+	}
+
+	void evictAll() {
+		trimToSize(-1);
+	}
+
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	// iteration in LRU order, starting with the least recently used entry
+	int eldest() {
+		return eldest;
+	}
+
+	int newer(int entry) {
+		return newer[entry];
+	}
+
+	long keyAt(int entry) {
+		return keys[entry];
+	}
+
+	Tile tileAt(int entry) {
+		return tiles[entry];
+	}
+
+	// removes an entry found through iteration, the next entry stays valid
+	void removeAt(int entry, boolean evicted) {
+		long key = keys[entry];
+		Tile tile = tiles[entry];
+		removeEntry(entry);
+		if (evicted)
+			evictionCount++;
+		entryRemoved(evicted, key, tile, null);
+	}
+
+	int count() {
+		return count;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int maxSize() {
+		return maxSize;
+	}
+
+	int hitCount() {
+		return hitCount;
+	}
+
+	int missCount() {
+		return missCount;
+	}
+
+	int evictionCount() {
+		return evictionCount;
+	}
+
+	private void removeEntry(int entry) {
+		removeSlot(findSlot(keys[entry]));
+		unlink(entry);
+		size -= sizes[entry];
+		tiles[entry] = null;
+		newer[entry] = free;
+		free = entry;
+		count--;
+	}
+
+	private void moveToYoungest(int entry) {
+		if (entry == youngest)
+			return;
+		unlink(entry);
+		linkYoungest(entry);
+	}
+
+	private void linkYoungest(int entry) {
+		older[entry] = youngest;
+		newer[entry] = NONE;
+		if (youngest != NONE)
+			newer[youngest] = entry;
+		else
+			eldest = entry;
+		youngest = entry;
+	}
+
+	private void unlink(int entry) {
+		int o = older[entry];
+		int n = newer[entry];
+		if (o != NONE)
+			newer[o] = n;
+		else
+			eldest = n;
+		if (n != NONE)
+			older[n] = o;
+		else
+			youngest = o;
+	}
+
+	// slot holding the key or the empty slot where it would be inserted
+	private int findSlot(long key) {
+		int slot = indexOf(key);
+		int entry;
+		while ((entry = table[slot]) != NONE) {
+			if (keys[entry] == key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	// backward shift deletion keeps probe sequences intact without tombstones
+	private void removeSlot(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (table[next] != NONE) {
+			int home = indexOf(keys[table[next]]);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[hole] = NONE;
+	}
+
+	private int indexOf(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
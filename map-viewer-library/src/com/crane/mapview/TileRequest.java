@@ -0,0 +1,42 @@
+package com.crane.mapview;
+
+import java.nio.ByteBuffer;
+
+class TileRequest implements TilesProvider.CancellationSignal {
+
+	final int zoomLevel;
+
+	final int tileX;
+
+	final int tileY;
+
+	final long key;
+
+	long order;
+
+	volatile boolean canceled;
+
+	boolean prefetch;
+
+	int generation;
+
+	// prefetches of a lower rank are fetched first
+	int rank;
+
+	ByteBuffer data;
+
+	// position of data in the encoded tiles cache, -1 when fetched
+	long encodedPosition = -1;
+
+	TileRequest(int zoomLevel, int tileX, int tileY) {
+		this.zoomLevel = zoomLevel;
+		this.tileX = tileX;
+		this.tileY = tileY;
+		this.key = Tile.getKey(tileX, tileY, zoomLevel);
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return canceled;
+	}
+}
@@ -0,0 +1,183 @@
+package com.crane.mapview;
+
+final class TileRequestQueue {
+
+	// distance in tiles added for every zoom level a request is away from the
+	// current one
+	private static final double ZOOM_LEVEL_PENALTY = 4d;
+
+	// requests farther than this many tiles outside the viewport are stale
+	private static final int STALE_MARGIN = 2;
+
+	private final TileRequest[] requests;
+
+	private int size;
+
+	private long counter;
+
+	private int zoomLevel = -1;
+
+	private int left;
+
+	private int top;
+
+	private int right;
+
+	private int bottom;
+
+	private double centerX;
+
+	private double centerY;
+
+	private int prefetchGeneration;
+
+	TileRequestQueue(int capacity) {
+		this.requests = new TileRequest[capacity];
+	}
+
+	synchronized void setViewport(int zoomLevel, int left, int top, int right, int bottom) {
+		this.zoomLevel = zoomLevel;
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+		this.centerX = (left + right + 1) / 2d;
+		this.centerY = (top + bottom + 1) / 2d;
+	}
+
+	synchronized int getPrefetchGeneration() {
+		return prefetchGeneration;
+	}
+
+	synchronized void cancelPrefetch() {
+		prefetchGeneration++;
+	}
+
+	synchronized boolean promote(long key) {
+		for (int i = 0; i < size; i++) {
+			if (requests[i].key == key) {
+				requests[i].prefetch = false;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	synchronized TileRequest remove(long key) {
+		for (int i = 0; i < size; i++)
+			if (requests[i].key == key && !requests[i].prefetch)
+				return removeAt(i);
+		return null;
+	}
+
+	synchronized boolean isStale(TileRequest request) {
+		if (request.prefetch)
+			return request.generation != prefetchGeneration;
+		if (zoomLevel < 0)
+			return false;
+		if (request.zoomLevel != zoomLevel)
+			return true;
+		return request.tileX < left - STALE_MARGIN || request.tileX > right + STALE_MARGIN || request.tileY < top - STALE_MARGIN || request.tileY > bottom + STALE_MARGIN;
+	}
+
+	synchronized TileRequest pollStale() {
+		for (int i = 0; i < size; i++)
+			if (isStale(requests[i]))
+				return removeAt(i);
+		return null;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	// returns the least useful request (possibly the offered one) when the
+	// queue is full
+	synchronized TileRequest offer(TileRequest request) {
+		request.order = counter++;
+		if (size < requests.length) {
+			requests[size++] = request;
+			return null;
+		}
+
+		int worst = indexOfWorst();
+		if (compare(request, requests[worst]) >= 0)
+			return request;
+
+		TileRequest dropped = requests[worst];
+		requests[worst] = request;
+		return dropped;
+	}
+
+	synchronized TileRequest poll() {
+		if (size == 0)
+			return null;
+
+		int best = 0;
+		for (int i = 1; i < size; i++)
+			if (compare(requests[i], requests[best]) < 0)
+				best = i;
+		return removeAt(best);
+	}
+
+	// moves up to max - 1 of the most useful requests for the same zoom level as
+	// the first one into the batch
+	synchronized void pollBatch(TileBatch batch, int max) {
+		int zoomLevel = batch.getZoomLevel();
+		while (batch.size() < max) {
+			int best = -1;
+			for (int i = 0; i < size; i++)
+				if (requests[i].zoomLevel == zoomLevel && (best < 0 || compare(requests[i], requests[best]) < 0))
+					best = i;
+			if (best < 0)
+				return;
+			batch.add(removeAt(best));
+		}
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < size; i++)
+			requests[i] = null;
+		size = 0;
+	}
+
+	private int indexOfWorst() {
+		int worst = 0;
+		for (int i = 1; i < size; i++)
+			if (compare(requests[i], requests[worst]) > 0)
+				worst = i;
+		return worst;
+	}
+
+	// prefetch requests come behind every visible one, the lower ranks first
+	private int compare(TileRequest r1, TileRequest r2) {
+		if (r1.prefetch != r2.prefetch)
+			return r1.prefetch ? 1 : -1;
+		if (r1.prefetch && r1.rank != r2.rank)
+			return r1.rank < r2.rank ? -1 : 1;
+		double s1 = score(r1);
+		double s2 = score(r2);
+		if (s1 != s2)
+			return s1 < s2 ? -1 : 1;
+		return r1.order > r2.order ? -1 : r1.order < r2.order ? 1 : 0;
+	}
+
+	private double score(TileRequest request) {
+		int dz = request.zoomLevel - zoomLevel;
+		double scale = dz >= 0 ? 1 << dz : 1d / (1 << -dz);
+		double dx = request.tileX + .5d - centerX * scale;
+		double dy = request.tileY + .5d - centerY * scale;
+		return Math.sqrt(dx * dx + dy * dy) + Math.abs(dz) * ZOOM_LEVEL_PENALTY;
+	}
+
+	private TileRequest removeAt(int index) {
+		TileRequest request = requests[index];
+		requests[index] = requests[--size];
+		requests[size] = null;
+		return request;
+	}
+}
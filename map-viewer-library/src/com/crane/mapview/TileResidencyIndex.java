@@ -0,0 +1,113 @@
+package com.crane.mapview;
+
+import java.util.Arrays;
+
+// Counts the cached tiles below every tile that has cached descendants, so a
+// missing tile can tell in O(1) whether it can be composed from smaller tiles.
+// Adding or removing a tile updates all its ancestors, O(zoom level).
+// Not thread safe, used from the UI thread only.
+final class TileResidencyIndex {
+
+	private static final long EMPTY = -1L;
+
+	private long[] keys;
+
+	private int[] counts;
+
+	private int mask;
+
+	private int size;
+
+	TileResidencyIndex(int capacity) {
+		allocate(Integer.highestOneBit(Math.max(2, capacity - 1)) << 1);
+	}
+
+	private void allocate(int length) {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[length];
+		counts = new int[length];
+		mask = length - 1;
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		if (oldKeys != null)
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != EMPTY)
+					counts[insert(oldKeys[i])] = oldCounts[i];
+	}
+
+	void add(long key) {
+		for (long ancestor = Tile.getParentKey(key); ancestor != 0; ancestor = Tile.getParentKey(ancestor)) {
+			int index = find(ancestor);
+			if (index < 0) {
+				if (size >= keys.length / 2)
+					allocate(keys.length * 2);
+				index = insert(ancestor);
+			}
+			counts[index]++;
+		}
+	}
+
+	void remove(long key) {
+		for (long ancestor = Tile.getParentKey(key); ancestor != 0; ancestor = Tile.getParentKey(ancestor)) {
+			int index = find(ancestor);
+			if (index < 0)
+				continue;
+			if (--counts[index] == 0)
+				removeAt(index);
+		}
+	}
+
+	// number of cached tiles below the tile at any depth
+	int getDescendantCount(long key) {
+		int index = find(key);
+		return index >= 0 ? counts[index] : 0;
+	}
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	private int find(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY) {
+			if (keys[index] == key)
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insert(long key) {
+		int index = indexOf(key);
+		while (keys[index] != EMPTY)
+			index = (index + 1) & mask;
+		keys[index] = key;
+		counts[index] = 0;
+		size++;
+		return index;
+	}
+
+	// backward shift deletion keeps probe sequences intact without tombstones
+	private void removeAt(int index) {
+		int hole = index;
+		int next = (hole + 1) & mask;
+		while (keys[next] != EMPTY) {
+			int home = indexOf(keys[next]);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				counts[hole] = counts[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		size--;
+	}
+
+	private int indexOf(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,45 @@
+package com.crane.mapview;
+
+final class TileResultBuffer {
+
+	private final long[] keys;
+
+	private final Tile[] tiles;
+
+	private final boolean[] canceled;
+
+	private int size;
+
+	TileResultBuffer(int capacity) {
+		this.keys = new long[capacity];
+		this.tiles = new Tile[capacity];
+		this.canceled = new boolean[capacity];
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+
+	synchronized boolean put(long key, Tile tile, boolean canceled) {
+		if (size == keys.length)
+			return false;
+		keys[size] = key;
+		tiles[size] = tile;
+		this.canceled[size] = canceled;
+		size++;
+		return true;
+	}
+
+	// moves all results into the given arrays, which have to be at least as
+	// large as the buffer
+	synchronized int drain(long[] keys, Tile[] tiles, boolean[] canceled) {
+		int count = size;
+		System.arraycopy(this.keys, 0, keys, 0, count);
+		System.arraycopy(this.tiles, 0, tiles, 0, count);
+		System.arraycopy(this.canceled, 0, canceled, 0, count);
+		for (int i = 0; i < count; i++)
+			this.tiles[i] = null;
+		size = 0;
+		return count;
+	}
+}
@@ -1,37 +1,265 @@
 package com.crane.mapview;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.support.v4.util.LruCache;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 
 public class TilesCache {
 
-	private LruCache<Long, Tile> cache;
+	// decides how many bytes of decoded tiles the cache may hold, memoryClass
+	// is ActivityManager.getMemoryClass() in megabytes, or
+	// getLargeMemoryClass() for an application with a large heap, and
+	// trimLevel the last ComponentCallbacks2 trim level or 0 when there is no
+	// memory pressure
+	public interface SizePolicy {
+		int getMaxSize(int memoryClass, int trimLevel);
+	}
+
+	// a fifth of the memory class without pressure, never more at a higher
+	// level
+	public static final SizePolicy DEFAULT_SIZE_POLICY = new SizePolicy() {
+		@Override
+		public int getMaxSize(int memoryClass, int trimLevel) {
+			int size = 1024 * 1024 * memoryClass / 5;
+			if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+				return 0;
+			else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+				return size / 8;
+			else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+				return size / 4;
+			else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+				return size / 4;
+			else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+				return size / 2;
+			else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+				return size * 3 / 4;
+			return size;
+		}
+	};
+
+	// a running app gets no callback once the pressure is gone, so the cache
+	// grows back after this long without a further trim, or when the map is
+	// shown again after a trim of a hidden UI
+	private static final long TRIM_RECOVERY_TIME = 60000;
+
+	private static final int INITIAL_CAPACITY = 128;
+
+	private final TileLruCache cache;
+
+	private final BitmapPool bitmapPool;
+
+	private final int memoryClass;
+
+	private SizePolicy sizePolicy = DEFAULT_SIZE_POLICY;
+
+	private int trimLevel;
+
+	private long trimTime;
+
+	private int zoomLevel;
+
+	private int shedCount;
+
+	private Object trimCallbacks;
+
+	// tiles drawn in the last frame, including the fallback tiles of lower
+	// zoom levels, they are never evicted
+	private final TileKeyList pinnedTiles = new TileKeyList(64);
+
+	private int pinnedEvictionCount;
+
+	// pinned tiles already counted in pinnedEvictionCount, a tile is counted
+	// again only after it was unpinned
+	private final TileKeyList pinnedEvictions = new TileKeyList(16);
+
+	private final TileResidencyIndex residencyIndex = new TileResidencyIndex(INITIAL_CAPACITY);
+
+	// held by whoever uses the cache while a MapView draws on its render
+	// thread, uncontended otherwise. The UI thread only tries it and defers
+	// its work when a frame is being drawn.
+	private final ReentrantLock lock = new ReentrantLock();
 
 	public TilesCache(Context context) {
-		final int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
-		final int cacheSize = 1024 * 1024 * memClass / 5;
-		cache = new LruCache<Long, Tile>(cacheSize) {
+		memoryClass = getMemoryClass(context);
+		final int cacheSize = sizePolicy.getMaxSize(memoryClass, 0);
+		bitmapPool = BitmapPool.isSupported() ? new BitmapPool(cacheSize / 8) : null;
+		cache = createCache(cacheSize);
+	}
+
+	private static int getMemoryClass(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0)
+			return activityManager.getLargeMemoryClass();
+		return activityManager.getMemoryClass();
+	}
+
+	private TileLruCache createCache(int maxSize) {
+		return new TileLruCache(maxSize, INITIAL_CAPACITY) {
 			@Override
-			protected int sizeOf(Long key, Tile value) {
-				return value.bitmap.getRowBytes() * value.bitmap.getHeight();
+			int sizeOf(Tile tile) {
+				return tile.bitmap.getRowBytes() * tile.bitmap.getHeight();
 			}
 
 			@Override
-			protected void entryRemoved(boolean evicted, Long key, Tile oldValue, Tile newValue) {
+			boolean isPinned(long key) {
+				if (!pinnedTiles.contains(key))
+					return false;
+				if (pinnedEvictions.insert(key))
+					pinnedEvictionCount++;
+				return true;
+			}
+
+			@Override
+			void entryAdded(long key) {
+				residencyIndex.add(key);
+			}
+
+			@Override
+			void entryRemoved(boolean evicted, long key, Tile oldValue, Tile newValue) {
 				if (newValue == null && oldValue != null) {
-					oldValue.bitmap.recycle();
-					oldValue.bitmap = null;
+					residencyIndex.remove(key);
+					releaseTile(oldValue);
 				}
 			}
 		};
 	}
 
+	private void releaseTile(Tile tile) {
+		if (bitmapPool != null)
+			bitmapPool.put(tile.bitmap);
+		else
+			tile.bitmap.recycle();
+		tile.bitmap = null;
+	}
+
+	ReentrantLock getLock() {
+		return lock;
+	}
+
+	BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+
+	void onFrameDrawn() {
+		if (bitmapPool != null)
+			bitmapPool.onFrameDrawn();
+	}
+
+	// the list has to be sorted
+	void setPinnedTiles(TileKeyList tiles) {
+		pinnedTiles.set(tiles);
+		pinnedEvictions.retainAll(pinnedTiles);
+	}
+
+	void setZoomLevel(int zoomLevel) {
+		this.zoomLevel = zoomLevel;
+	}
+
+	// registers for trim callbacks, available since ICS
+	void registerTrimCallbacks(Context context) {
+		if (trimCallbacks != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+			return;
+		TrimCallbacks callbacks = new TrimCallbacks(this);
+		context.getApplicationContext().registerComponentCallbacks(callbacks);
+		trimCallbacks = callbacks;
+	}
+
+	void unregisterTrimCallbacks(Context context) {
+		if (trimCallbacks == null)
+			return;
+		TrimCallbacks callbacks = (TrimCallbacks) trimCallbacks;
+		context.getApplicationContext().unregisterComponentCallbacks(callbacks);
+		callbacks.handler.removeCallbacks(callbacks);
+		trimCallbacks = null;
+	}
+
+	public SizePolicy getSizePolicy() {
+		return sizePolicy;
+	}
+
+	public void setSizePolicy(SizePolicy sizePolicy) {
+		this.sizePolicy = sizePolicy;
+		resize(sizePolicy.getMaxSize(memoryClass, trimLevel));
+	}
+
+	public void onTrimMemory(int level) {
+		trimLevel = level;
+		trimTime = SystemClock.uptimeMillis();
+		resize(sizePolicy.getMaxSize(memoryClass, level));
+	}
+
+	public void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+	}
+
+	public int getTrimLevel() {
+		return trimLevel;
+	}
+
+	// the map is shown again, the trims of a hidden UI no longer apply
+	void onVisible() {
+		if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			trimLevel = 0;
+			resize(sizePolicy.getMaxSize(memoryClass, 0));
+		}
+	}
+
+	private void checkTrimRecovery() {
+		if (trimLevel != 0 && trimLevel < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && SystemClock.uptimeMillis() - trimTime > TRIM_RECOVERY_TIME) {
+			trimLevel = 0;
+			resize(sizePolicy.getMaxSize(memoryClass, 0));
+		}
+	}
+
+	// zoom levels farthest from the current one are shed first, the rest is
+	// evicted in LRU order
+	private void resize(int maxSize) {
+		if (maxSize == cache.maxSize())
+			return;
+
+		if (maxSize <= 0) {
+			clear();
+			cache.setMaxSize(0);
+			return;
+		}
+
+		int maxDistance = 0;
+		for (int e = cache.eldest(); e >= 0; e = cache.newer(e))
+			maxDistance = Math.max(maxDistance, Math.abs(Tile.getZoomLevelFromKey(cache.keyAt(e)) - zoomLevel));
+
+		for (int distance = maxDistance; distance > 0 && cache.size() > maxSize; distance--) {
+			int next;
+			for (int e = cache.eldest(); e >= 0 && cache.size() > maxSize; e = next) {
+				next = cache.newer(e);
+				long key = cache.keyAt(e);
+				if (Math.abs(Tile.getZoomLevelFromKey(key) - zoomLevel) != distance || pinnedTiles.contains(key))
+					continue;
+				cache.removeAt(e, false);
+				shedCount++;
+			}
+		}
+
+		cache.setMaxSize(maxSize);
+	}
+
 	public int size() {
 		return cache.size();
 	}
 
+	public int maxSize() {
+		return cache.maxSize();
+	}
+
 	public void clear() {
+		pinnedTiles.clear();
+		pinnedEvictions.clear();
 		cache.evictAll();
 	}
 
@@ -43,11 +271,109 @@ public class TilesCache {
 		return cache.missCount();
 	}
 
+	// tiles evicted in LRU order
+	public int evictionCount() {
+		return cache.evictionCount();
+	}
+
+	// visible tiles the LRU order picked for eviction, each counted once
+	// while it stays pinned, they are kept until they leave the screen
+	public int pinnedEvictionCount() {
+		return pinnedEvictionCount;
+	}
+
+	// tiles dropped because their zoom level was shed on a resize
+	public int shedCount() {
+		return shedCount;
+	}
+
 	public Tile get(int tileX, int tileY, int zoomLevel) {
 		return cache.get(Tile.getKey(tileX, tileY, zoomLevel));
 	}
 
+	public Tile get(long key) {
+		return cache.get(key);
+	}
+
+	// returns the tile if cached without counting a miss otherwise, for
+	// probing fallback tiles
+	Tile getIfPresent(long key) {
+		return cache.getIfPresent(key);
+	}
+
+	boolean contains(long key) {
+		return cache.contains(key);
+	}
+
+	// closest cached ancestor at most maxLevels above the tile or -1
+	long findAncestorKey(long key, int maxLevels) {
+		long ancestor = key;
+		for (int i = 0; i < maxLevels; i++) {
+			ancestor = Tile.getParentKey(ancestor);
+			if (ancestor == 0)
+				break;
+			if (cache.contains(ancestor))
+				return ancestor;
+		}
+		return -1;
+	}
+
+	boolean hasDescendants(long key) {
+		return residencyIndex.getDescendantCount(key) > 0;
+	}
+
 	public void put(int tileX, int tileY, int zoomLevel, Tile tile) {
+		checkTrimRecovery();
 		cache.put(Tile.getKey(tileX, tileY, zoomLevel), tile);
 	}
+
+	// called on the UI thread, a trim arriving while a frame is drawn on the
+	// render thread is retried shortly instead of waiting for the frame, the
+	// latest level wins
+	private static class TrimCallbacks implements ComponentCallbacks2, Runnable {
+
+		private static final long RETRY_DELAY = 10;
+
+		private final TilesCache tilesCache;
+
+		private final Handler handler = new Handler();
+
+		// level of the trim not applied yet, 0 if none
+		private int pendingLevel;
+
+		TrimCallbacks(TilesCache tilesCache) {
+			this.tilesCache = tilesCache;
+		}
+
+		@Override
+		public void onTrimMemory(int level) {
+			boolean posted = pendingLevel != 0;
+			pendingLevel = level;
+			if (!posted)
+				run();
+		}
+
+		@Override
+		public void onLowMemory() {
+			onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		}
+
+		@Override
+		public void run() {
+			if (!tilesCache.lock.tryLock()) {
+				handler.postDelayed(this, RETRY_DELAY);
+				return;
+			}
+			try {
+				tilesCache.onTrimMemory(pendingLevel);
+				pendingLevel = 0;
+			} finally {
+				tilesCache.lock.unlock();
+			}
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	}
 }
@@ -1,27 +1,27 @@
 package com.crane.mapview;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.BlockingDeque;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.os.Build;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 @SuppressLint("NewApi")
 public abstract class TilesProvider {
@@ -30,21 +30,90 @@ public abstract class TilesProvider {
 		void onFetch(Tile tile, int zoomLevel, int tileX, int tileY);
 	}
 
+	// lets fetched tiles wait for deliverResults() so they are taken in
+	// batches, without it they are delivered as soon as they arrive
+	interface OnTilesAvailableListener {
+		void onTilesAvailable();
+	}
+
+	public interface CancellationSignal {
+		CancellationSignal NONE = new CancellationSignal() {
+			@Override
+			public boolean isCanceled() {
+				return false;
+			}
+		};
+
+		boolean isCanceled();
+	}
+
 	private OnTileListener onTileListener;
 
-	private Handler handler;
+	private OnTilesAvailableListener onTilesAvailableListener;
 
-	private TilesThread tilesThread;
+	private Handler handler;
 
-	private static final int CORE_POOL_SIZE = 1;
+	private static final int CORE_POOL_SIZE = 2;
 
 	private static final int MAXIMUM_POOL_SIZE = 2;
 
+	private static final int DECODE_POOL_SIZE = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
 	private static final int KEEP_ALIVE = 1;
 
-	private static final AtomicLong TASK_COUNTER = new AtomicLong();
+	private static final int QUEUE_CAPACITY = 64;
+
+	private static final int DECODE_QUEUE_CAPACITY = 8;
+
+	private static final int IN_FLIGHT_CAPACITY = 256;
+
+	private static final int FAILED_TILES_CAPACITY = 256;
+
+	private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+	private static final int ENCODED_CACHE_MAX_TILES = 2048;
+
+	private static final int MESSAGE_RESULTS = 0;
+
+	private static final int MESSAGE_RETRY = 1;
+
+	private final TileKeyList requestedTiles = new TileKeyList(QUEUE_CAPACITY);
+
+	// a requested tile left the queue without a result, it is requested again
+	// once the queue has room
+	private boolean requestsDropped;
+
+	// every result still holds its in-flight slot, so the buffer never has to
+	// take more results than there are slots
+	private final TileResultBuffer results = new TileResultBuffer(IN_FLIGHT_CAPACITY);
+
+	private final AtomicBoolean resultsPending = new AtomicBoolean();
+
+	private final long[] deliveredKeys = new long[IN_FLIGHT_CAPACITY];
+
+	private final Tile[] deliveredTiles = new Tile[IN_FLIGHT_CAPACITY];
 
-	private static final Set<Long> runningTasks = Collections.synchronizedSet(new HashSet<Long>());
+	private final boolean[] deliveredCanceled = new boolean[IN_FLIGHT_CAPACITY];
+
+	private final FailedTiles failedTiles = new FailedTiles(FAILED_TILES_CAPACITY);
+
+	private long nextRetryTime = Long.MAX_VALUE;
+
+	private int failureCount;
+
+	private int suppressedCount;
+
+	private volatile BitmapPool bitmapPool;
+
+	// size of the bitmaps taken from the pool, resolved once by init() since
+	// getTileSize() may have to query the tiles source
+	private volatile int decodeTileSize;
+
+	private volatile EncodedTilesCache encodedTiles;
+
+	// set by release() before it waits for the workers, no stage is scheduled
+	// and no request is queued again until the next init()
+	private volatile boolean released;
 
 	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
 		private final AtomicInteger mCount = new AtomicInteger(1);
@@ -54,101 +123,99 @@ public abstract class TilesProvider {
 		}
 	};
 
-	private static final BlockingQueue<Runnable> sPoolWorkQueue = Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD ? new LinkedBlockingDeque<Runnable>(20) : new LinkedBlockingQueue<Runnable>(20);
-
-	private static final RejectedExecutionHandler REJECTED_EXECUTION_HANDLER = new RejectedExecutionHandler() {
+	private static final ThreadFactory sDecodeThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
 
-		@Override
-		public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
-			if (!e.isShutdown()) {
-				BlockingDeque<Runnable> deque = (BlockingDeque<Runnable>) e.getQueue();
-				Task task = (Task) deque.pollLast();
-				if (task != null)
-					runningTasks.remove(task.key);
-				e.execute(r);
-			}
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "MapDecode #" + mCount.getAndIncrement());
 		}
 	};
 
-	public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory, REJECTED_EXECUTION_HANDLER);
-
-	private class Task implements Runnable, Comparable<Task> {
+	public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
 
-		long order = TASK_COUNTER.getAndIncrement();
+	public static final Executor DECODE_EXECUTOR = new ThreadPoolExecutor(DECODE_POOL_SIZE, DECODE_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sDecodeThreadFactory);
 
-		int zoomLevel;
+	private final TileRequestQueue requestQueue = new TileRequestQueue(QUEUE_CAPACITY);
 
-		int tileX;
+	private final BlockingQueue<TileRequest> decodeQueue = new ArrayBlockingQueue<TileRequest>(DECODE_QUEUE_CAPACITY);
 
-		int tileY;
+	private final List<TileRequest> activeRequests = new ArrayList<TileRequest>();
 
-		long key;
+	private final InFlightTiles inFlightTiles = new InFlightTiles(IN_FLIGHT_CAPACITY);
 
-		Task(int zoomLevel, int tileX, int tileY) {
-			this.zoomLevel = zoomLevel;
-			this.tileX = tileX;
-			this.tileY = tileY;
-			this.key = Tile.getKey(tileX, tileY, zoomLevel);
+	private final ThreadLocal<Options> decodeOptions = new ThreadLocal<Options>() {
+		@Override
+		protected Options initialValue() {
+			Options options = new Options();
+			options.inTempStorage = new byte[DECODE_BUFFER_SIZE];
+			// only mutable bitmaps can be reused for later decodes, the field
+			// came with HONEYCOMB like inBitmap
+			if (BitmapPool.isSupported())
+				options.inMutable = true;
+			prepareDecodeOptions(options);
+			return options;
 		}
+	};
 
+	private final ThreadLocal<ByteBufferInputStream> decodeStreams = new ThreadLocal<ByteBufferInputStream>() {
 		@Override
-		public void run() {
-			Tile tile = doFetchTile(zoomLevel, tileX, tileY);
-			handler.obtainMessage(0, new Result(TilesProvider.this, tile, tileX, tileY, zoomLevel)).sendToTarget();
+		protected ByteBufferInputStream initialValue() {
+			return new ByteBufferInputStream();
 		}
+	};
 
+	private final PipelineStage fetchStage = new PipelineStage(THREAD_POOL_EXECUTOR, MAXIMUM_POOL_SIZE) {
 		@Override
-		public int compareTo(Task another) {
-			return order < another.order ? 1 : -1;
+		int pending() {
+			return !released && decodeQueue.remainingCapacity() > 0 ? requestQueue.size() : 0;
 		}
 
 		@Override
-		public boolean equals(Object o) {
-			Task other = (Task) o;
-			return other.key == key;
+		void process() {
+			TileBatch batch = new TileBatch(Math.max(1, getBatchSize()));
+			TileRequest request;
+			while (!released && decodeQueue.remainingCapacity() > 0 && (request = requestQueue.poll()) != null) {
+				EncodedTilesCache encodedTiles = TilesProvider.this.encodedTiles;
+				if (encodedTiles != null && encodedTiles.get(request)) {
+					enqueueDecode(request);
+					continue;
+				}
+				batch.add(request);
+				requestQueue.pollBatch(batch, getBatchSize());
+				// the requests joining the batch may have been cached as well
+				if (encodedTiles != null) {
+					for (int i = batch.size() - 1; i > 0; i--) {
+						TileRequest batched = batch.getRequest(i);
+						if (encodedTiles.get(batched)) {
+							batch.remove(i);
+							enqueueDecode(batched);
+						}
+					}
+				}
+				fetchBatch(batch);
+				batch.clear();
+			}
 		}
+	};
 
+	private final PipelineStage decodeStage = new PipelineStage(DECODE_EXECUTOR, DECODE_POOL_SIZE) {
 		@Override
-		public int hashCode() {
-			return (int) key;
+		int pending() {
+			return released ? 0 : decodeQueue.size();
 		}
-	}
-
-	private class TilesThread extends Thread {
-
-		private Handler handler;
 
 		@Override
-		public void run() {
-			Looper.prepare();
-			handler = new Handler() {
-				@Override
-				public void dispatchMessage(Message msg) {
-
-					if (msg.what < 0) {
-						Looper.myLooper().quit();
-						return;
-					}
-
-					int tileX = msg.arg1;
-					int tileY = msg.arg2;
-					int zoomLevel = msg.what;
-
-					long key = Tile.getKey(tileX, tileY, zoomLevel);
-					if (runningTasks.contains(key))
-						return;
-
-					runningTasks.add(key);
-					THREAD_POOL_EXECUTOR.execute(new Task(zoomLevel, tileX, tileY));
-				}
-			};
-			Looper.loop();
+		void process() {
+			TileRequest request;
+			while ((request = decodeQueue.poll()) != null) {
+				fetchStage.schedule();
+				decodeTile(request);
+			}
 		}
-	}
+	};
 
 	public TilesProvider() {
 		this.handler = new InternalHandler();
-		this.tilesThread = new TilesThread();
 	}
 
 	protected abstract double getMinZoomLevel();
@@ -164,67 +231,445 @@ public abstract class TilesProvider {
 	protected abstract Bitmap getDefaultBitmap(Context context);
 
 	public final void init() {
+		int encodedCacheSize = getEncodedCacheSize();
+		encodedTiles = encodedCacheSize > 0 ? new EncodedTilesCache(encodedCacheSize, ENCODED_CACHE_MAX_TILES) : null;
 		doInit();
-		tilesThread.start();
+		decodeTileSize = getTileSize();
+		released = false;
 	}
 
 	public final void release() {
-		if (tilesThread.handler != null) {
-			tilesThread.handler.obtainMessage(-1).sendToTarget();
-			try {
-				tilesThread.join();
-			} catch (InterruptedException e) {
-			}
+		released = true;
+		encodedTiles = null;
+		requestedTiles.clear();
+		requestsDropped = false;
+		failedTiles.clear();
+		nextRetryTime = Long.MAX_VALUE;
+		handler.removeMessages(MESSAGE_RETRY);
+		synchronized (activeRequests) {
+			for (int i = 0; i < activeRequests.size(); i++)
+				activeRequests.get(i).canceled = true;
+		}
+
+		// running workers must not touch the resources doRelease() closes. A
+		// fetch worker may still hand its last tiles to the decode stage and a
+		// worker scheduled just before the flag was set may start late, so
+		// wait until both stages are idle at once.
+		TileRequest request;
+		do {
+			while ((request = requestQueue.poll()) != null)
+				inFlightTiles.remove(request.key);
+			fetchStage.awaitIdle();
+			while ((request = decodeQueue.poll()) != null)
+				inFlightTiles.remove(request.key);
+			decodeStage.awaitIdle();
+		} while (!fetchStage.isIdle() || !decodeStage.isIdle() || !requestQueue.isEmpty() || !decodeQueue.isEmpty());
+
+		synchronized (activeRequests) {
+			for (int i = 0; i < activeRequests.size(); i++)
+				inFlightTiles.remove(activeRequests.get(i).key);
+			activeRequests.clear();
 		}
+
+		// results delivered meanwhile are of the released source
+		handler.removeMessages(MESSAGE_RESULTS);
+		resultsPending.set(false);
+		int count = results.drain(deliveredKeys, deliveredTiles, deliveredCanceled);
+		for (int i = 0; i < count; i++) {
+			inFlightTiles.remove(deliveredKeys[i]);
+			Tile tile = deliveredTiles[i];
+			deliveredTiles[i] = null;
+			if (tile != null && tile.bitmap != null)
+				tile.bitmap.recycle();
+		}
+
 		doRelease();
 	}
 
 	protected abstract Tile doFetchTile(int zoomLevel, int tileX, int tileY);
 
-	public final void fetchTileAsync(final int zoomLevel, final int tileX, final int tileY) {
-		tilesThread.handler.obtainMessage(zoomLevel, tileX, tileY).sendToTarget();
+	protected Tile doFetchTile(int zoomLevel, int tileX, int tileY, CancellationSignal signal) {
+		return doFetchTile(zoomLevel, tileX, tileY);
+	}
+
+	protected void prepareDecodeOptions(Options options) {
 	}
 
-	private void onResult(Tile tile, int tileX, int tileY, int zoomLevel) {
-		runningTasks.remove(Tile.getKey(tileX, tileY, zoomLevel));
-		if (tile != null) {
-			if (onTileListener != null)
-				onTileListener.onFetch(tile, zoomLevel, tileX, tileY);
+	protected Tile doDecodeTile(ByteBuffer data, int zoomLevel, int tileX, int tileY) {
+		Options options = decodeOptions.get();
+		// before HONEYCOMB there is no pool and no inBitmap to touch
+		if (!BitmapPool.isSupported()) {
+			Bitmap bitmap = decodeBitmap(data, options);
+			return bitmap != null ? new Tile(bitmap) : null;
 		}
+
+		BitmapPool bitmapPool = this.bitmapPool;
+		Bitmap inBitmap = null;
+		int tileSize = decodeTileSize;
+		if (bitmapPool != null && tileSize > 0)
+			inBitmap = bitmapPool.get(tileSize, tileSize, options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888);
+
+		Bitmap bitmap;
+		try {
+			options.inBitmap = inBitmap;
+			try {
+				bitmap = decodeBitmap(data, options);
+			} catch (IllegalArgumentException e) {
+				// the pooled bitmap does not fit the encoded image
+				if (inBitmap == null)
+					throw e;
+				options.inBitmap = null;
+				bitmap = decodeBitmap(data, options);
+			}
+		} finally {
+			options.inBitmap = null;
+		}
+
+		if (inBitmap != null && bitmap != inBitmap)
+			bitmapPool.put(inBitmap);
+		return bitmap != null ? new Tile(bitmap) : null;
 	}
 
-	public OnTileListener getOnTileListener() {
-		return onTileListener;
+	private Bitmap decodeBitmap(ByteBuffer data, Options options) {
+		if (data.hasArray())
+			return BitmapFactory.decodeByteArray(data.array(), data.arrayOffset() + data.position(), data.remaining(), options);
+
+		ByteBufferInputStream in = decodeStreams.get();
+		in.setBuffer(data.duplicate());
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.setBuffer(null);
+		}
 	}
 
-	public void setOnTileListener(OnTileListener onTileListener) {
-		this.onTileListener = onTileListener;
+	// size in bytes of the in-memory cache of encoded tile data, 0 disables it,
+	// only tiles fetched as data through EncodedTilesProvider are kept there
+	protected int getEncodedCacheSize() {
+		return 0;
 	}
 
-	private static class InternalHandler extends Handler {
-		public void handleMessage(Message msg) {
-			Result result = (Result) msg.obj;
-			result.tilesProvider.onResult(result.tile, result.tileX, result.tileY, result.zoomLevel);
+	protected int getBatchSize() {
+		return 1;
+	}
+
+	protected void doFetchTiles(TileBatch batch) {
+		int zoomLevel = batch.getZoomLevel();
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.isCanceled(i))
+				continue;
+			batch.setTile(i, doFetchTile(zoomLevel, batch.getTileX(i), batch.getTileY(i), batch.getRequest(i)));
+		}
+	}
+
+	private void fetchBatch(TileBatch batch) {
+		synchronized (activeRequests) {
+			for (int i = 0; i < batch.size(); i++) {
+				activeRequests.add(batch.getRequest(i));
+				inFlightTiles.setRunning(batch.getRequest(i).key);
+			}
+		}
+		try {
+			doFetchTiles(batch);
+		} finally {
+			for (int i = 0; i < batch.size(); i++) {
+				TileRequest request = batch.getRequest(i);
+				if (request.data != null && batch.getTile(i) == null)
+					enqueueDecode(request);
+				else
+					deliver(request, batch.getTile(i));
+			}
+		}
+	}
+
+	private void enqueueDecode(TileRequest request) {
+		try {
+			decodeQueue.put(request);
+			decodeStage.schedule();
+		} catch (InterruptedException e) {
+			request.data = null;
+			deliver(request, null);
+		}
+	}
+
+	private void decodeTile(TileRequest request) {
+		ByteBuffer data = request.data;
+		long encodedPosition = request.encodedPosition;
+		request.data = null;
+		request.encodedPosition = -1;
+		Tile tile = null;
+		try {
+			if (!request.canceled)
+				tile = doDecodeTile(data, request.zoomLevel, request.tileX, request.tileY);
+
+			EncodedTilesCache encodedTiles = this.encodedTiles;
+			if (encodedTiles != null) {
+				if (encodedPosition < 0) {
+					if (tile != null)
+						encodedTiles.put(request.key, data);
+				} else if (!encodedTiles.isValid(encodedPosition)) {
+					// the cached data was overwritten while being decoded
+					if (tile != null && tile.bitmap != null)
+						tile.bitmap.recycle();
+					if (!request.canceled) {
+						refetch(request);
+						return;
+					}
+					tile = null;
+				}
+			}
+		} catch (Throwable e) {
+			Log.e(getClass().getSimpleName(), "Unable decode tile: x=" + request.tileX + "; y=" + request.tileY + "; zoom=" + request.zoomLevel, e);
+		}
+		deliver(request, tile);
+	}
+
+	private void refetch(TileRequest request) {
+		if (released) {
+			request.canceled = true;
+			deliver(request, null);
+			return;
+		}
+		TileRequest dropped = requestQueue.offer(request);
+		if (dropped != null) {
+			dropped.canceled = true;
+			deliver(dropped, null);
+		}
+		fetchStage.schedule();
+	}
+
+	private void deliver(TileRequest request, Tile tile) {
+		synchronized (activeRequests) {
+			activeRequests.remove(request);
+		}
+		if (!results.put(request.key, tile, request.canceled)) {
+			inFlightTiles.remove(request.key);
+			if (tile != null && tile.bitmap != null)
+				tile.bitmap.recycle();
+			return;
+		}
+		if (resultsPending.compareAndSet(false, true))
+			handler.obtainMessage(MESSAGE_RESULTS, this).sendToTarget();
+	}
+
+	public final void setViewport(int zoomLevel, int left, int top, int right, int bottom) {
+		requestQueue.setViewport(zoomLevel, left, top, right, bottom);
+		removeStaleRequests();
+	}
+
+	private void removeStaleRequests() {
+		TileRequest stale;
+		while ((stale = requestQueue.pollStale()) != null) {
+			inFlightTiles.remove(stale.key);
+			if (!stale.prefetch)
+				requestsDropped = true;
+		}
+
+		synchronized (activeRequests) {
+			for (int i = 0; i < activeRequests.size(); i++) {
+				TileRequest request = activeRequests.get(i);
+				if (requestQueue.isStale(request))
+					request.canceled = true;
+			}
+		}
+	}
+
+	// tiles are expected to be requested from a single thread, usually the UI
+	// one
+	final void requestTiles(TileKeyList wanted) {
+		int i = 0;
+		int j = 0;
+		while (i < wanted.size() || j < requestedTiles.size()) {
+			long key = i < wanted.size() ? wanted.get(i) : Long.MAX_VALUE;
+			long requestedKey = j < requestedTiles.size() ? requestedTiles.get(j) : Long.MAX_VALUE;
+			if (key < requestedKey) {
+				request(key, false, 0);
+				i++;
+			} else if (key > requestedKey) {
+				TileRequest request = requestQueue.remove(requestedKey);
+				if (request != null)
+					inFlightTiles.remove(request.key);
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		requestedTiles.set(wanted);
+		if (requestsDropped)
+			requestDroppedTiles();
+		fetchStage.schedule();
+	}
+
+	private void requestDroppedTiles() {
+		requestsDropped = false;
+		for (int i = 0; i < requestedTiles.size(); i++) {
+			long key = requestedTiles.get(i);
+			if (!inFlightTiles.contains(key))
+				request(key, false, 0);
 		}
+		fetchStage.schedule();
 	}
 
-	private static class Result {
-		TilesProvider tilesProvider;
+	public final void fetchTileAsync(int zoomLevel, int tileX, int tileY) {
+		request(Tile.getKey(tileX, tileY, zoomLevel), false, 0);
+		fetchStage.schedule();
+	}
 
-		Tile tile;
+	public final void prefetchTileAsync(int zoomLevel, int tileX, int tileY) {
+		prefetchTileAsync(zoomLevel, tileX, tileY, 0);
+	}
 
-		int tileX;
+	// prefetches of a lower rank are fetched first and dropped last when the
+	// queue is full
+	final void prefetchTileAsync(int zoomLevel, int tileX, int tileY, int rank) {
+		request(Tile.getKey(tileX, tileY, zoomLevel), true, rank);
+		fetchStage.schedule();
+	}
 
-		int tileY;
+	public final void cancelPrefetch() {
+		requestQueue.cancelPrefetch();
+		removeStaleRequests();
+	}
 
-		int zoomLevel;
+	private void request(long key, boolean prefetch, int rank) {
+		long retryTime = failedTiles.getRetryTime(key, SystemClock.uptimeMillis());
+		if (retryTime > 0) {
+			suppressedCount++;
+			if (!prefetch)
+				scheduleRetry(retryTime);
+			return;
+		}
 
-		public Result(TilesProvider tilesProvider, Tile tile, int tileX, int tileY, int zoomLevel) {
-			this.tilesProvider = tilesProvider;
-			this.tile = tile;
-			this.tileX = tileX;
-			this.tileY = tileY;
-			this.zoomLevel = zoomLevel;
+		if (!inFlightTiles.add(key)) {
+			if (!prefetch)
+				requestQueue.promote(key);
+			return;
+		}
+
+		TileRequest request = new TileRequest(Tile.getZoomLevelFromKey(key), Tile.getTileXFromKey(key), Tile.getTileYFromKey(key));
+		if (prefetch) {
+			request.prefetch = true;
+			request.generation = requestQueue.getPrefetchGeneration();
+			request.rank = rank;
+		}
+
+		TileRequest dropped = requestQueue.offer(request);
+		if (dropped != null) {
+			inFlightTiles.remove(dropped.key);
+			if (!dropped.prefetch)
+				requestsDropped = true;
+		}
+	}
+
+	public final void deliverResults() {
+		resultsPending.set(false);
+		int count = results.drain(deliveredKeys, deliveredTiles, deliveredCanceled);
+		long now = SystemClock.uptimeMillis();
+		for (int i = 0; i < count; i++) {
+			long key = deliveredKeys[i];
+			Tile tile = deliveredTiles[i];
+			deliveredTiles[i] = null;
+
+			inFlightTiles.remove(key);
+			if (tile != null) {
+				failedTiles.remove(key);
+				if (onTileListener != null)
+					onTileListener.onFetch(tile, Tile.getZoomLevelFromKey(key), Tile.getTileXFromKey(key), Tile.getTileYFromKey(key));
+			} else if (!deliveredCanceled[i]) {
+				failureCount++;
+				long retryTime = failedTiles.onFailure(key, now);
+				if (requestedTiles.contains(key))
+					scheduleRetry(retryTime);
+			} else if (requestedTiles.contains(key)) {
+				requestsDropped = true;
+			}
+		}
+		if (requestsDropped && count > 0)
+			requestDroppedTiles();
+	}
+
+	private void scheduleRetry(long time) {
+		if (time >= nextRetryTime)
+			return;
+		nextRetryTime = time;
+		handler.removeMessages(MESSAGE_RETRY);
+		handler.sendMessageAtTime(handler.obtainMessage(MESSAGE_RETRY, this), time);
+	}
+
+	private void retryFailedTiles() {
+		nextRetryTime = Long.MAX_VALUE;
+		for (int i = 0; i < requestedTiles.size(); i++)
+			request(requestedTiles.get(i), false, 0);
+		fetchStage.schedule();
+	}
+
+	public int getEncodedCacheHitCount() {
+		EncodedTilesCache encodedTiles = this.encodedTiles;
+		return encodedTiles != null ? encodedTiles.hitCount() : 0;
+	}
+
+	public int getEncodedCacheMissCount() {
+		EncodedTilesCache encodedTiles = this.encodedTiles;
+		return encodedTiles != null ? encodedTiles.missCount() : 0;
+	}
+
+	public int getFailureCount() {
+		return failureCount;
+	}
+
+	public int getSuppressedCount() {
+		return suppressedCount;
+	}
+
+	public int getFailedTilesCount() {
+		return failedTiles.size();
+	}
+
+	private void onResultsAvailable() {
+		if (onTilesAvailableListener != null)
+			onTilesAvailableListener.onTilesAvailable();
+		else
+			deliverResults();
+	}
+
+	public int getQueuedCount() {
+		return inFlightTiles.queuedCount();
+	}
+
+	public int getRunningCount() {
+		return inFlightTiles.runningCount();
+	}
+
+	void setOnTilesAvailableListener(OnTilesAvailableListener onTilesAvailableListener) {
+		this.onTilesAvailableListener = onTilesAvailableListener;
+	}
+
+	void setBitmapPool(BitmapPool bitmapPool) {
+		this.bitmapPool = bitmapPool;
+	}
+
+	public OnTileListener getOnTileListener() {
+		return onTileListener;
+	}
+
+	public void setOnTileListener(OnTileListener onTileListener) {
+		this.onTileListener = onTileListener;
+	}
+
+	private static class InternalHandler extends Handler {
+		public void handleMessage(Message msg) {
+			TilesProvider tilesProvider = (TilesProvider) msg.obj;
+			switch (msg.what) {
+
+			case MESSAGE_RESULTS:
+				tilesProvider.onResultsAvailable();
+				break;
+
+			case MESSAGE_RETRY:
+				tilesProvider.retryFailedTiles();
+				break;
+			}
 		}
 	}
 }
@@ -27,6 +27,11 @@ public class ZoomDetector implements View.OnTouchListener {
 		void onDown();
 	}
 
+	public interface OnZoomEndListener {
+		// called once the pinch that produced onZoom() calls has ended
+		void onZoomEnd();
+	}
+
 	private enum Mode {
 		ZOOM, PAN
 	}
@@ -71,6 +76,8 @@ public class ZoomDetector implements View.OnTouchListener {
 
 	private OnZoomListener onZoomListener;
 
+	private OnZoomEndListener onZoomEndListener;
+
 	private Handler handler;
 
 	private static final int TAP_MESSAGE = 0;
@@ -136,6 +143,8 @@ public class ZoomDetector implements View.OnTouchListener {
 				secondPointerDown = false;
 			}
 
+			endZooming();
+
 			if (velocityTracker != null) {
 				velocityTracker.recycle();
 				velocityTracker = null;
@@ -143,6 +152,10 @@ public class ZoomDetector implements View.OnTouchListener {
 
 			break;
 
+		case MotionEvent.ACTION_CANCEL:
+			endZooming();
+			break;
+
 		case MotionEvent.ACTION_DOWN:
 
 			if (onZoomListener != null)
@@ -185,6 +198,9 @@ public class ZoomDetector implements View.OnTouchListener {
 			break;
 
 		case MotionEvent.ACTION_POINTER_UP:
+			if (mMode == Mode.ZOOM)
+				endZooming();
+
 			savePanX = event.getX(MotionEventCompat.getActionIndex(event) == 1 ? 0 : 1);
 			savePanY = event.getY(MotionEventCompat.getActionIndex(event) == 1 ? 0 : 1);
 			mMode = Mode.PAN;
@@ -289,6 +305,12 @@ public class ZoomDetector implements View.OnTouchListener {
 		return true;
 	}
 
+	private void endZooming() {
+		if (zoomingStarted && onZoomEndListener != null)
+			onZoomEndListener.onZoomEnd();
+		zoomingStarted = false;
+	}
+
 	private double smoothedScale(double scale) {
 		if (lastScale == 0d)
 			lastScale = scale;
@@ -329,4 +351,12 @@ public class ZoomDetector implements View.OnTouchListener {
 	public void setOnZoomListener(OnZoomListener onZoomListener) {
 		this.onZoomListener = onZoomListener;
 	}
+
+	public OnZoomEndListener getOnZoomEndListener() {
+		return onZoomEndListener;
+	}
+
+	public void setOnZoomEndListener(OnZoomEndListener onZoomEndListener) {
+		this.onZoomEndListener = onZoomEndListener;
+	}
 }
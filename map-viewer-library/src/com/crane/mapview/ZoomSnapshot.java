@@ -0,0 +1,134 @@
+package com.crane.mapview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+// Tiles rendered once at the start of a pinch and scaled with a matrix while
+// it lasts, so the gesture neither resolves tiles at every move nor switches
+// zoom levels halfway. The bitmap covers the viewport plus a quarter of it on
+// every side, which keeps the viewport covered when zooming out a bit.
+final class ZoomSnapshot {
+
+	private Bitmap bitmap;
+
+	private Canvas canvas;
+
+	// rendered area in map coordinates of the map size below
+	private final Rect area = new Rect();
+
+	private int mapSize;
+
+	private int zoom;
+
+	private int tileSize;
+
+	private boolean valid;
+
+	private final Matrix matrix = new Matrix();
+
+	private final Paint paint = new Paint();
+	{
+		paint.setFilterBitmap(true);
+	}
+
+	private final Rect src = new Rect();
+
+	private final Rect dst = new Rect();
+
+	// returns false when the backing bitmap could not be allocated
+	boolean prepare(int width, int height) {
+		int w = width + (width / 4) * 2;
+		int h = height + (height / 4) * 2;
+		if (bitmap != null && bitmap.getWidth() == w && bitmap.getHeight() == h)
+			return true;
+
+		release();
+		try {
+			bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+		} catch (OutOfMemoryError e) {
+			return false;
+		}
+		canvas = new Canvas(bitmap);
+		return true;
+	}
+
+	// returns a canvas positioned so the tiles can be drawn at their map
+	// coordinates, has to be followed by endDraw()
+	Canvas beginDraw(int left, int top, int right, int bottom, int mapSize, int zoom, int tileSize) {
+		area.set(left, top, Math.min(right, left + bitmap.getWidth()), Math.min(bottom, top + bitmap.getHeight()));
+		this.mapSize = mapSize;
+		this.zoom = zoom;
+		this.tileSize = tileSize;
+		canvas.save();
+		canvas.clipRect(0, 0, area.width(), area.height());
+		canvas.translate(-left, -top);
+		return canvas;
+	}
+
+	void endDraw() {
+		canvas.restore();
+		valid = true;
+	}
+
+	boolean isValid() {
+		return valid;
+	}
+
+	void invalidate() {
+		valid = false;
+	}
+
+	void release() {
+		if (bitmap != null)
+			bitmap.recycle();
+		bitmap = null;
+		canvas = null;
+		valid = false;
+	}
+
+	Rect getArea() {
+		return area;
+	}
+
+	// draws a tile of the snapshot level that arrived after the snapshot was
+	// rendered over whatever stood in for it
+	void onTileArrived(Tile tile, int zoom, int tileX, int tileY) {
+		if (!valid || zoom != this.zoom || tile.bitmap == null)
+			return;
+		int x1 = tileX * tileSize;
+		int y1 = tileY * tileSize;
+		if (!area.intersects(x1, y1, x1 + tileSize, y1 + tileSize))
+			return;
+		dst.set(x1 - area.left, y1 - area.top, x1 - area.left + tileSize, y1 - area.top + tileSize);
+		canvas.save();
+		canvas.clipRect(0, 0, area.width(), area.height());
+		canvas.drawBitmap(tile.bitmap, null, dst, paint);
+		canvas.restore();
+	}
+
+	// whether the snapshot scaled to the map size still covers the viewport
+	// and is not scaled beyond maxScale either way
+	boolean covers(int mapSize, int sx1, int sy1, int sx2, int sy2, double maxScale) {
+		if (!valid)
+			return false;
+		double scale = (double) mapSize / this.mapSize;
+		if (scale > maxScale || scale < 1 / maxScale)
+			return false;
+		return area.left * scale <= sx1 && area.top * scale <= sy1 && area.right * scale >= sx2 && area.bottom * scale >= sy2;
+	}
+
+	// draws the snapshot scaled to the map size into a canvas in map
+	// coordinates
+	void draw(Canvas target, int mapSize) {
+		float scale = (float) mapSize / this.mapSize;
+		matrix.setScale(scale, scale);
+		src.set(0, 0, area.width(), area.height());
+		target.save();
+		target.concat(matrix);
+		target.drawBitmap(bitmap, src, area, paint);
+		target.restore();
+	}
+}
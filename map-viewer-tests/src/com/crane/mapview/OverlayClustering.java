@@ -0,0 +1,23 @@
+package com.crane.mapview;
+
+import java.util.concurrent.CountDownLatch;
+
+// Lets the tests wait for the clusters MapView builds off the UI thread.
+public final class OverlayClustering {
+
+	private OverlayClustering() {
+	}
+
+	// returns once the clusters of the prepareOverlays() calls run so far are
+	// built, they are swapped in by a message posted to the UI thread
+	public static void await() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		OverlayClusterer.EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		done.await();
+	}
+}
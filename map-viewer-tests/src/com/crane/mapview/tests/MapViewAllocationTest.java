@@ -0,0 +1,125 @@
+package com.crane.mapview.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.crane.mapview.MapView;
+import com.crane.mapview.OverlayClustering;
+
+// Draws a map whose tiles are all cached into a bitmap and checks that
+// redrawing it allocates nothing on the UI thread, with clustered circle
+// overlays, text overlays, the route and a location fix in view.
+public class MapViewAllocationTest extends ActivityInstrumentationTestCase2<MapViewTestActivity> {
+
+	private static final int FRAMES = 20;
+
+	private static final long SETTLE_TIMEOUT = 10000;
+
+	// the circle overlays merge into one cluster
+	private static final double CLUSTER_ZOOM = 12;
+
+	private MapView mapView;
+
+	private TestTilesProvider tilesProvider;
+
+	private Canvas canvas;
+
+	private int allocCount;
+
+	public MapViewAllocationTest() {
+		super(MapViewTestActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		MapViewTestActivity activity = getActivity();
+		mapView = activity.getMapView();
+		tilesProvider = activity.getTilesProvider();
+		getInstrumentation().waitForIdleSync();
+		Bitmap bitmap = Bitmap.createBitmap(mapView.getWidth(), mapView.getHeight(), Bitmap.Config.RGB_565);
+		canvas = new Canvas(bitmap);
+	}
+
+	public void testClusteredFramesDoNotAllocate() throws Throwable {
+		showAt(CLUSTER_ZOOM, MapViewTestActivity.LAT, MapViewTestActivity.LNG);
+		assertFramesDoNotAllocate();
+	}
+
+	// no clusters are built for the maximum zoom level
+	public void testTextOverlayFramesDoNotAllocate() throws Throwable {
+		showAt(MapView.MAX_ZOOM_LEVEL, MapViewTestActivity.TEXT_LAT, MapViewTestActivity.TEXT_LNG);
+		assertFramesDoNotAllocate();
+	}
+
+	// centers the map with the location fix in the middle, once the clusters
+	// are in
+	private void showAt(final double zoom, final double lat, final double lng) throws Throwable {
+		OverlayClustering.await();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				Location location = new Location(LocationManager.GPS_PROVIDER);
+				location.setLatitude(lat);
+				location.setLongitude(lng);
+				mapView.setMyLocation(location);
+				mapView.zoomTo(zoom, .5d, .5d);
+				mapView.moveToNoAnim(lat, lng);
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+		settle();
+	}
+
+	private void assertFramesDoNotAllocate() throws Throwable {
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				drawFrame();
+
+				Debug.resetThreadAllocCount();
+				Debug.startAllocCounting();
+				for (int i = 0; i < FRAMES; i++)
+					drawFrame();
+				Debug.stopAllocCounting();
+				allocCount = Debug.getThreadAllocCount();
+			}
+		});
+
+		assertEquals("objects allocated by " + FRAMES + " settled frames", 0, allocCount);
+	}
+
+	// draws until every visible tile is cached and nothing is being fetched
+	private void settle() throws Throwable {
+		Runnable draw = new Runnable() {
+			@Override
+			public void run() {
+				drawFrame();
+			}
+		};
+		long deadline = SystemClock.uptimeMillis() + SETTLE_TIMEOUT;
+		int fetchCount = -1;
+		while (SystemClock.uptimeMillis() < deadline) {
+			runTestOnUiThread(draw);
+			getInstrumentation().waitForIdleSync();
+			int count = tilesProvider.getFetchCount();
+			if (count == fetchCount && tilesProvider.getQueuedCount() + tilesProvider.getRunningCount() == 0)
+				return;
+			fetchCount = count;
+			SystemClock.sleep(100);
+		}
+		fail("map did not settle in " + SETTLE_TIMEOUT + " ms");
+	}
+
+	private void drawFrame() {
+		canvas.save();
+		canvas.translate(-mapView.getScrollX(), -mapView.getScrollY());
+		mapView.draw(canvas);
+		canvas.restore();
+	}
+}
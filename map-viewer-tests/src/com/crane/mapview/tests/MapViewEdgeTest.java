@@ -0,0 +1,73 @@
+package com.crane.mapview.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.crane.mapview.MapView;
+
+// Draws the map scrolled to its corners at whole and fractional zoom levels,
+// where the viewport ends exactly on the map size.
+public class MapViewEdgeTest extends ActivityInstrumentationTestCase2<MapViewTestActivity> {
+
+	private static final double[] ZOOM_LEVELS = { 2, 2.4, 3, 5.7, 8 };
+
+	private MapView mapView;
+
+	private Canvas canvas;
+
+	public MapViewEdgeTest() {
+		super(MapViewTestActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mapView = getActivity().getMapView();
+		getInstrumentation().waitForIdleSync();
+		Bitmap bitmap = Bitmap.createBitmap(mapView.getWidth(), mapView.getHeight(), Bitmap.Config.RGB_565);
+		canvas = new Canvas(bitmap);
+	}
+
+	public void testDrawsAtMaxScrollPosition() throws Throwable {
+		drawAt(Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	public void testDrawsAtMinScrollPosition() throws Throwable {
+		drawAt(0, 0);
+	}
+
+	public void testDrawsAtOppositeCorners() throws Throwable {
+		drawAt(Integer.MAX_VALUE, 0);
+		drawAt(0, Integer.MAX_VALUE);
+	}
+
+	// scrollTo() clamps to the scroll range, so MAX_VALUE ends on the map size
+	private void drawAt(final int x, final int y) throws Throwable {
+		for (final double zoom : ZOOM_LEVELS) {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					mapView.zoomTo(zoom, .5d, .5d);
+					mapView.scrollTo(x, y);
+					drawFrame();
+				}
+			});
+			// tiles delivered for the edge are drawn too
+			getInstrumentation().waitForIdleSync();
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					drawFrame();
+				}
+			});
+		}
+	}
+
+	private void drawFrame() {
+		canvas.save();
+		canvas.translate(-mapView.getScrollX(), -mapView.getScrollY());
+		mapView.draw(canvas);
+		canvas.restore();
+	}
+}
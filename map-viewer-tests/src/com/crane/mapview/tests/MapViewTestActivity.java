@@ -0,0 +1,76 @@
+package com.crane.mapview.tests;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.NinePatchDrawable;
+import android.os.Bundle;
+
+import com.crane.mapview.MapView;
+import com.crane.mapview.MapView.Overlay;
+import com.crane.mapview.MapView.RoutePoint;
+
+public class MapViewTestActivity extends Activity {
+
+	// circle overlays, clustered below the maximum zoom level
+	static final double LAT = 55.75;
+
+	static final double LNG = 37.62;
+
+	// text overlays a few pixels apart at the maximum zoom level, far enough
+	// from the circles never to be clustered with them
+	static final double TEXT_LAT = 59.94;
+
+	static final double TEXT_LNG = 30.31;
+
+	private static final int OVERLAY_COUNT = 50;
+
+	private static final int TEXT_OVERLAY_COUNT = 20;
+
+	private TestTilesProvider tilesProvider;
+
+	private MapView mapView;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		tilesProvider = new TestTilesProvider();
+		tilesProvider.init();
+
+		mapView = new MapView(this);
+		mapView.setTilesProvider(tilesProvider);
+		setContentView(mapView);
+
+		Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(Color.BLACK);
+		NinePatchDrawable circle = (NinePatchDrawable) getResources().getDrawable(R.drawable.circle);
+		for (int i = 0; i < OVERLAY_COUNT; i++)
+			mapView.addOverlay(new Overlay(LAT + (i % 7 - 3) * 0.002, LNG + (i / 7 - 3) * 0.002, bitmap, circle));
+		for (int i = 0; i < TEXT_OVERLAY_COUNT; i++)
+			mapView.addOverlay(new Overlay(TEXT_LAT + (i % 4 - 2) * 0.0001, TEXT_LNG + (i / 4 - 2) * 0.0001, bitmap, "" + i));
+		mapView.prepareOverlays(true);
+
+		// a route zigzagging across both groups of overlays
+		for (int i = -4; i <= 4; i++)
+			mapView.addRoutePoint(new RoutePoint(LAT + (i & 1) * 0.004, LNG + i * 0.004));
+		for (int i = -4; i <= 4; i++)
+			mapView.addRoutePoint(new RoutePoint(TEXT_LAT + (i & 1) * 0.0002, TEXT_LNG + i * 0.0002));
+
+		mapView.moveToNoAnim(LAT, LNG);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		tilesProvider.release();
+	}
+
+	public MapView getMapView() {
+		return mapView;
+	}
+
+	public TestTilesProvider getTilesProvider() {
+		return tilesProvider;
+	}
+}
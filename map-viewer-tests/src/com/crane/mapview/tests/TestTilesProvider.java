@@ -0,0 +1,59 @@
+package com.crane.mapview.tests;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.crane.mapview.Tile;
+import com.crane.mapview.TilesProvider;
+
+// Serves plain tiles without I/O, so a map settles as soon as the visible
+// tiles are decoded.
+public class TestTilesProvider extends TilesProvider {
+
+	private static final int TILE_SIZE = 256;
+
+	private final AtomicInteger fetchCount = new AtomicInteger();
+
+	@Override
+	protected double getMinZoomLevel() {
+		return 1;
+	}
+
+	@Override
+	protected double getMaxZoomLevel() {
+		return 18;
+	}
+
+	@Override
+	protected int getTileSize() {
+		return TILE_SIZE;
+	}
+
+	@Override
+	protected void doInit() {
+	}
+
+	@Override
+	protected void doRelease() {
+	}
+
+	@Override
+	protected Bitmap getDefaultBitmap(Context context) {
+		return null;
+	}
+
+	@Override
+	protected Tile doFetchTile(int zoomLevel, int tileX, int tileY) {
+		fetchCount.incrementAndGet();
+		Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+		bitmap.eraseColor((tileX + tileY) % 2 == 0 ? Color.WHITE : Color.LTGRAY);
+		return new Tile(bitmap);
+	}
+
+	public int getFetchCount() {
+		return fetchCount.get();
+	}
+}